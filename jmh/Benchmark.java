@@ -0,0 +1,240 @@
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+// Workloads for the JMH benchmark in jmh/bench. JMH will not generate code for a benchmark in the
+// default package and a class in a package cannot name one here, so the benchmark looks these
+// factories up by name. Each returns one operation of a hot path, its result for the blackhole:
+//
+//   mvn -B test-compile exec:exec@jmh -Djmh.args="-p call=propagate:chain:100000"
+public class Benchmark {
+	// Formula evaluation: compiling on entry and walking the compiled tree on recalculation
+	private static final String[] formulas = {
+		"=@a*2+@b/3-sqrt(@a)",
+		"=sin(@a)^2+cos(@a)^2",
+		"=(@a+@b)*(@a-@b)/(1+@a^2)-tan(@b/4)",
+		"=max(@a,@b)-min(@a,@b)+sum(@a,@b,2)/avg(@a,@b)+log(@a)*exp(@b/10)+round(atan2(@b,@a))",
+	};
+
+	public static DoubleSupplier formula(String mode, int f) {
+		Graph graph = new Graph();
+		graph.add(0, 0, "a").updateValue("3", false);
+		graph.add(0, 0, "b").updateValue("7", false);
+		Node node = graph.add(0, 0, "c");
+		String formula = formulas[f];
+		node.updateValue(formula, false);
+		switch(mode) {
+			case "evaluate":
+				return () -> node.evaluate();
+			case "compile":
+				String other = formula + "+0";
+				boolean[] flip = {false};
+				return () -> {
+					flip[0] = !flip[0];
+					node.updateValue(flip[0] ? other : formula, false);
+					return node.getValue();
+				};
+		};
+		throw new IllegalArgumentException("Unknown formula benchmark " + mode);
+	};
+
+	// The same formulas over a column of scenarios, one element-wise pass per evaluation
+	public static DoubleSupplier column(int f, int rows) {
+		Graph graph = new Graph();
+		StringBuilder column = new StringBuilder("{");
+		for(int i = 0; i < rows; i++) column.append(i == 0 ? "" : ",").append(i % 100);
+		graph.add(0, 0, "a").updateValue(column.append('}').toString(), false);
+		graph.add(0, 0, "b").updateValue("7", false);
+		Node node = graph.add(0, 0, "c");
+		node.updateValue(formulas[f], false);
+		return () -> node.evaluateColumn()[0];
+	};
+
+	// Change propagation through different graph shapes
+	public static DoubleSupplier propagate(String shape, int size) {
+		switch(shape) {
+			case "chain": return toggle(chain(size));
+			case "diamond": return toggle(diamond(size / 10, 10));
+			case "fanout": return toggle(fanOut(new Graph(), size));
+			case "shared": return toggle(sharedFanOut(size));
+			case "gated": return toggle(gated(size));
+			case "lazy":
+				// Lazy mode, where an edit only marks dependents stale and one is read back
+				Graph lazy = new Graph();
+				lazy.setLazy(true);
+				DoubleSupplier edit = toggle(fanOut(lazy, size));
+				Node watched = lazy.get(lazy.size() - 1);
+				return () -> edit.getAsDouble() + watched.getValue();
+		};
+		throw new IllegalArgumentException("Unknown graph shape " + shape);
+	};
+
+	// Inputs feeding one long chain, edited one at a time or as a single transaction
+	public static DoubleSupplier edit(String mode, int width, int length) {
+		Graph graph = new Graph();
+		Node[] inputs = sharedChain(graph, width, length);
+		switch(mode) {
+			case "separate": return toggle(graph, inputs, false);
+			case "transaction": return toggle(graph, inputs, true);
+		};
+		throw new IllegalArgumentException("Unknown edit benchmark " + mode);
+	};
+
+	// Undo and redo of one edit in a large sheet, which only revisit the edited node and its dependents
+	public static DoubleSupplier undo(int size) {
+		Graph history = layoutGraph(size);
+		history.checkpoint();
+		history.get(size / 2).updateValue("=@0*2", false);
+		history.checkpoint();
+		boolean[] undone = {false};
+		return () -> {
+			undone[0] = !undone[0];
+			return (undone[0] ? history.undo() : history.redo()) ? 1 : 0;
+		};
+	};
+
+	// One layout step: forces then integration, as Main.gameUpdate runs them. A stray step has one
+	// unconnected node far off, which must not coarsen the grid for everyone else; a plain step is
+	// integration alone, a straight pass over the Bodies arrays.
+	public static DoubleSupplier layout(String mode, int size) {
+		Graph graph = layoutGraph(size);
+		ForceLayout layout = new ForceLayout(250, 75);
+		switch(mode) {
+			case "grid": break;
+			case "exact": layout.setExact(true); break;
+			case "stray": graph.add(2_000_000, 2_000_000, "stray"); break;
+			case "step": return () -> graph.step(0.9f);
+			default: throw new IllegalArgumentException("Unknown layout benchmark " + mode);
+		};
+		return () -> {
+			layout.createForces(graph);
+			graph.step(0.9f);
+			return graph.get(0).getX();
+		};
+	};
+
+	// One off-screen frame of the real renderer, including the scene capture on the simulation
+	// side, of a sheet spread over windows x windows screens of which the camera shows one
+	public static DoubleSupplier render(int size, int windows) {
+		Main main = new Main();
+		main.setGraph(layoutGraph(size, windows));
+		return () -> {
+			main.publish();
+			main.gameRender();
+			return 0;
+		};
+	};
+
+	private static DoubleSupplier toggle(Node root) {
+		double[] value = {0};
+		return () -> {
+			value[0] = value[0] == 0 ? 1 : 0;
+			return root.updateValue(String.valueOf(value[0]), false).size();
+		};
+	};
+
+	private static DoubleSupplier toggle(Graph graph, Node[] roots, boolean transaction) {
+		double[] value = {0};
+		return () -> {
+			value[0] = value[0] == 0 ? 1 : 0;
+			String input = String.valueOf(value[0]);
+			if(!transaction) {
+				int changed = 0;
+				for(Node root : roots) changed += root.updateValue(input, false).size();
+				return changed;
+			};
+			Transaction edit = graph.begin();
+			for(Node root : roots) edit.set(root, input);
+			return edit.commit().size();
+		};
+	};
+
+	private static Node[] sharedChain(Graph graph, int width, int length) {
+		Node[] roots = new Node[width];
+		StringBuilder sum = new StringBuilder("=0");
+		for(int i = 0; i < width; i++) {
+			roots[i] = graph.add(0, 0, "in");
+			sum.append("+@").append(roots[i].getId());
+		};
+		Node previous = graph.add(0, 0, "sum");
+		previous.updateValue(sum.toString(), false);
+		for(int i = 1; i < length; i++) {
+			Node node = graph.add(0, 0, "n");
+			node.updateValue("=@" + previous.getId() + "+1", false);
+			previous = node;
+		};
+		return roots;
+	};
+
+	private static Node chain(int length) {
+		Graph graph = new Graph();
+		Node root = graph.add(0, 0, "root");
+		Node previous = root;
+		for(int i = 1; i < length; i++) {
+			Node node = graph.add(0, 0, "n");
+			node.updateValue("=@" + previous.getId() + "+1", false);
+			previous = node;
+		};
+		return root;
+	};
+
+	// A long chain behind a node whose value never changes, so an edit of the root changes one node
+	private static Node gated(int length) {
+		Graph graph = new Graph();
+		Node root = graph.add(0, 0, "root");
+		Node previous = graph.add(0, 0, "gate");
+		previous.updateValue("=@root*0", false);
+		for(int i = 1; i < length; i++) {
+			Node node = graph.add(0, 0, "n");
+			node.updateValue("=@" + previous.getId() + "+1", false);
+			previous = node;
+		};
+		return root;
+	};
+
+	// Layers of nodes that each read two nodes of the layer above, so most nodes are reached by many paths
+	private static Node diamond(int width, int depth) {
+		Graph graph = new Graph();
+		Node root = graph.add(0, 0, "root");
+		Node[] layer = {root};
+		for(int d = 0; d < depth; d++) {
+			Node[] next = new Node[width];
+			for(int i = 0; i < width; i++) {
+				next[i] = graph.add(0, 0, "n");
+				Node left = layer[i % layer.length], right = layer[(i + 1) % layer.length];
+				next[i].updateValue("=@" + left.getId() + "*0.5+@" + right.getId() + "*0.5+1", false);
+			};
+			layer = next;
+		};
+		return root;
+	};
+
+	private static Node fanOut(Graph graph, int width) {
+		Node root = graph.add(0, 0, "root");
+		for(int i = 0; i < width; i++) graph.add(0, 0, "n").updateValue("=@root*" + i + "+sqrt(@root)", false);
+		return root;
+	};
+
+	// Every node repeats the same subexpression, as generated sheets do
+	private static Node sharedFanOut(int width) {
+		Graph graph = new Graph();
+		Node root = graph.add(0, 0, "root");
+		for(int i = 0; i < width; i++) graph.add(0, 0, "n").updateValue("=sqrt(@root*@root+1)*sin(@root)/(1+@root^2)+" + i + "*sqrt(2)", false);
+		return root;
+	};
+
+	// Randomly placed nodes with about two edges per node, as in a typical sheet
+	private static Graph layoutGraph(int n) {
+		return layoutGraph(n, 1);
+	};
+
+	// Spread over windows x windows screens
+	private static Graph layoutGraph(int n, int windows) {
+		Random random = new Random(n);
+		Graph graph = new Graph();
+		for(int i = 0; i < n; i++) {
+			Node node = graph.add(random.nextInt(Main.windowWidth * windows), random.nextInt(Main.windowHeight * windows), "n");
+			if(i >= 2) node.updateValue("=@" + random.nextInt(i) + "+@" + random.nextInt(i), false);
+		};
+		return graph;
+	};
+};
@@ -0,0 +1,84 @@
+package bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// One operation of the sheet per invocation, built once per trial by a factory on Benchmark.
+// The sheet lives in the default package, which a benchmark cannot import, so the factory is
+// found by name; the lookup is paid in setup and the measured call is an interface call.
+//
+// Each workload is the factory call written name:arg:arg, so any other can be run from the
+// command line the same way, e.g. -p call=layout:grid:100000.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 4, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 8, time = 250, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+@State(Scope.Thread)
+public class Workload {
+	@Param({
+		// A formula compiled on entry, or its compiled tree walked on recalculation
+		"formula:evaluate:0", "formula:evaluate:1", "formula:evaluate:2", "formula:evaluate:3",
+		"formula:compile:0", "formula:compile:1", "formula:compile:2", "formula:compile:3",
+		// The same formulas over a column of scenarios, one element-wise pass per evaluation
+		"column:0:100000", "column:1:100000", "column:2:100000", "column:3:100000",
+		// One edit of a root and the recalculation it sets off, through different graph shapes
+		"propagate:chain:1000", "propagate:diamond:1000", "propagate:fanout:1000",
+		"propagate:shared:1000", "propagate:gated:1000", "propagate:lazy:1000",
+		"propagate:chain:10000", "propagate:diamond:10000", "propagate:fanout:10000",
+		"propagate:shared:10000", "propagate:gated:10000", "propagate:lazy:10000",
+		// Every input of a long chain edited, one at a time or as a single transaction
+		"edit:separate:100:1000", "edit:transaction:100:1000",
+		// Undo or redo of one edit in a large sheet
+		"undo:10000",
+		// One layout step on the grid, with a stray node far off, or integration alone; the
+		// all-pairs step is kept to sizes that take well under a second
+		"layout:grid:100", "layout:stray:100", "layout:step:100",
+		"layout:grid:1000", "layout:stray:1000", "layout:step:1000",
+		"layout:grid:10000", "layout:stray:10000", "layout:step:10000",
+		"layout:exact:100", "layout:exact:1000",
+		// One off-screen frame of the renderer over a sheet spread across windows x windows screens
+		"render:100:1", "render:1000:1", "render:10000:1",
+		"render:100:10", "render:1000:10", "render:10000:10",
+	})
+	public String call;
+
+	private DoubleSupplier operation;
+
+	@Setup(Level.Trial)
+	public void setup() throws ReflectiveOperationException {
+		operation = factory(call.split(":"));
+	};
+
+	@Benchmark
+	public void run(Blackhole hole) {
+		hole.consume(operation.getAsDouble());
+	};
+
+	// Arguments are converted to the types the factory takes, which are only ints and strings
+	static DoubleSupplier factory(String[] call) throws ReflectiveOperationException {
+		int count = call.length - 1;
+		for(Method method : Class.forName("Benchmark").getMethods()) {
+			if(!method.getName().equals(call[0]) || method.getParameterCount() != count) continue;
+			Class<?>[] types = method.getParameterTypes();
+			Object[] args = new Object[count];
+			for(int i = 0; i < count; i++) args[i] = types[i] == int.class ? (Object)Integer.valueOf(call[i + 1]) : call[i + 1];
+			return (DoubleSupplier)method.invoke(null, args);
+		};
+		throw new NoSuchMethodException("Benchmark." + call[0] + " taking " + count + " arguments");
+	};
+};
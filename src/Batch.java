@@ -0,0 +1,129 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Headless entry point: evaluates a sheet without opening a window.
+//
+//   java Batch <sheet> [-o <file>] [-u] [-t <threshold>]
+//
+// The sheet holds one node per line as "name: input", where input is a number, a {1, 2, 3}
+// column or an =formula, exactly as typed into a node. Formulas over columns are evaluated for
+// every element in one pass, so a column of scenarios runs the whole sheet once per batch. Blank
+// lines and lines starting with # are skipped. Every node is printed as "name = value" once the
+// sheet is evaluated, columns in the same {} form. With -u, "name=input" updates are then
+// read from stdin, and after each one only the nodes whose value changed are printed. A graph
+// saved from the window (.ncalc) can be given in place of a text sheet. -t sets how many nodes
+// a dependency level needs before it is recalculated in parallel.
+public class Batch {
+	public static void main(String[] args) throws IOException {
+		String sheet = null;
+		String output = null;
+		boolean updates = false;
+		for(int i = 0; i < args.length; i++) {
+			if(args[i].equals("-o") && i + 1 < args.length) output = args[++i];
+			else if(args[i].equals("-u")) updates = true;
+			else if(args[i].equals("-t") && i + 1 < args.length) Recalculator.setParallelThreshold(Integer.parseInt(args[++i]));
+			else sheet = args[i];
+		};
+		if(sheet == null) {
+			System.err.println("Usage: java Batch <sheet> [-o <file>] [-u] [-t <threshold>]");
+			System.exit(2);
+		};
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(output == null
+				? new OutputStreamWriter(System.out)
+				: new FileWriter(output)));
+		Graph graph;
+		if(sheet.endsWith(".ncalc")) {
+			graph = GraphFile.load(Path.of(sheet));
+		} else {
+			graph = new Graph();
+			load(graph, sheet);
+		};
+		for(Node node : graph) print(out, node);
+		out.flush();
+
+		if(updates) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while((line = in.readLine()) != null) {
+				int split = line.indexOf('=');
+				if(split == -1) {
+					if(!line.isBlank()) System.err.println("Expected name=input: " + line);
+					continue;
+				};
+				Node node = graph.find(Graph.normalize(line.substring(0, split)), null);
+				if(node == null) {
+					System.err.println("Node " + line.substring(0, split).trim() + " does not exist");
+					continue;
+				};
+				double before = node.getValue();
+				double[] beforeColumn = node.getColumn();
+				ErrorValue beforeError = node.getError();
+				ArrayList<Node> changed = node.updateValue(line.substring(split + 1).trim(), false);
+				if(Double.doubleToLongBits(before) != Double.doubleToLongBits(node.getValue())
+						|| !Arrays.equals(beforeColumn, node.getColumn()) || beforeError != node.getError()) print(out, node);
+				for(Node dependent : changed) print(out, dependent);
+				if(node.getError() != null) System.err.println(node.getError().message(node));
+				if(!in.ready()) out.flush();	// Batches output while more updates are already waiting
+			};
+			out.flush();
+		};
+		out.close();
+	};
+
+	// Creates every node before entering any input, so formulas may reference nodes defined later
+	static void load(Graph graph, String sheet) throws IOException {
+		ArrayList<Node> order = new ArrayList<Node>();
+		ArrayList<String> inputs = new ArrayList<String>();
+		ArrayList<Integer> lines = new ArrayList<Integer>();
+		try(BufferedReader reader = new BufferedReader(new FileReader(sheet))) {
+			String line;
+			int number = 0;
+			while((line = reader.readLine()) != null) {
+				number++;
+				if(line.isBlank() || line.trim().startsWith("#")) continue;
+				int split = line.indexOf(':');
+				if(split == -1) {
+					System.err.println("line " + number + ": expected name: input");
+					continue;
+				};
+				Node node = graph.add(0, 0, "");
+				try {node.updateValue(line.substring(0, split).trim(), true);}
+				catch(Exception e) {System.err.println("line " + number + ": " + e.getMessage());};
+				order.add(node);
+				inputs.add(line.substring(split + 1).trim());
+				lines.add(number);
+			};
+		};
+
+		// One recalculation for the whole sheet; if any line is bad, redo it line by line to report each
+		Transaction transaction = graph.begin();
+		for(int i = 0; i < order.size(); i++) transaction.set(order.get(i), inputs.get(i));
+		try {
+			transaction.commit();
+			return;
+		} catch(Exception e) {};
+		for(int i = 0; i < order.size(); i++) {
+			Node node = order.get(i);
+			node.updateValue(inputs.get(i), false);
+			ErrorValue error = node.getError();
+			if(error != null && error.origin == node) System.err.println("line " + lines.get(i) + ": " + error.detail);
+		};
+	};
+
+	private static void print(PrintWriter out, Node node) {
+		double value = node.getValue();
+		if(node.getError() != null) out.println(node.getName() + " = " + node.getError().code.text);
+		else if(node.getColumn() != null) out.println(node.getName() + " = " + Node.formatColumn(node.getColumn()));
+		else out.println(node.getName() + " = " + (Double.isNaN(value) ? "N/A" : Double.toString(value)));
+	};
+};
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+// Layout state of every node, kept as parallel primitive arrays indexed by graph slot rather than
+// as fields on each Node. Slots are dense and removal swaps the last body into the hole, in step
+// with Graph's node list. The integration pass walks contiguous doubles with no calls or branches:
+// VectorKernel runs it on the incubating Vector API when the JVM was started with
+// --add-modules jdk.incubator.vector, and otherwise the scalar loop here runs it, which HotSpot's
+// superword optimisation vectorises as best it can. Both give the same bits. The world is
+// unbounded; the camera decides what is on screen.
+//
+// Sleeping: positions are averaged over windows of restLimit frames, and a body whose average
+// moved less than restDistance since the previous window stops integrating until disturbed.
+// Averaging also puts to rest bodies oscillating around a force cutoff, which never lose their
+// speed. A sleeping body ignores forces, since at rest they are balanced,
+// and only wakes when a neighbour acting on it moved more than wakeDistance in the last frame.
+final class Bodies {
+	private static final double restDistance = 4;
+	private static final int restLimit = 60;
+	private static final double wakeDistance = 1;
+
+	double[] x = new double[16], y = new double[16];
+	double[] xVel = new double[16], yVel = new double[16];
+	double[] lastMove = new double[16];	// Distance moved in the last step or drag
+	private double[] sumX = new double[16], sumY = new double[16];
+	private double[] restX = new double[16], restY = new double[16];	// Average of the previous window
+	private int[] restFrames = new int[16];
+	private boolean[] asleep = new boolean[16];
+	private int size = 0;
+
+	interface Kernel {
+		// Moves bodies [0, n) by their velocity, records how far, and damps the velocity
+		void integrate(double[] x, double[] y, double[] xVel, double[] yVel, double[] lastMove, int n, double dampener);
+	};
+
+	// Resolved only when the module is there, since loading VectorKernel without it fails
+	private static final Kernel kernel = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+		? new VectorKernel()
+		: (x, y, xVel, yVel, lastMove, n, dampener) -> integrate(x, y, xVel, yVel, lastMove, 0, n, dampener);
+
+	int add(double x, double y) {
+		if(size == this.x.length) grow(size * 2);
+		int i = size++;
+		this.x[i] = x;
+		this.y[i] = y;
+		xVel[i] = yVel[i] = lastMove[i] = 0;
+		wake(i);
+		return i;
+	};
+
+	// Moves the last body into the freed slot
+	void remove(int slot) {
+		int last = --size;
+		if(slot == last) return;
+		x[slot] = x[last];
+		y[slot] = y[last];
+		xVel[slot] = xVel[last];
+		yVel[slot] = yVel[last];
+		lastMove[slot] = lastMove[last];
+		sumX[slot] = sumX[last];
+		sumY[slot] = sumY[last];
+		restX[slot] = restX[last];
+		restY[slot] = restY[last];
+		restFrames[slot] = restFrames[last];
+		asleep[slot] = asleep[last];
+	};
+
+	int size() {
+		return size;
+	};
+
+	void addForce(int i, double dx, double dy) {
+		if(asleep[i]) return;
+		xVel[i] += dx;
+		yVel[i] += dy;
+	};
+
+	void drag(int i, double x, double y) {
+		wake(i);
+		lastMove[i] = Math.abs(x - this.x[i]) + Math.abs(y - this.y[i]);
+		this.x[i] = x;
+		this.y[i] = y;
+		xVel[i] = yVel[i] = 0;
+	};
+
+	boolean isAsleep(int i) {
+		return asleep[i];
+	};
+
+	// Called for each neighbour exerting a force on body i
+	void disturb(int i, int other) {
+		if(asleep[i] && !asleep[other] && lastMove[other] > wakeDistance) wake(i);
+	};
+
+	void wake(int i) {
+		if(asleep[i]) lastMove[i] = 0;	// Still holds the step that put it to sleep
+		asleep[i] = false;
+		restX[i] = restY[i] = Double.NaN;
+		sumX[i] = sumY[i] = 0;
+		restFrames[i] = 0;
+	};
+
+	// Integrates and damps every body, then updates the rest windows. Returns the number of
+	// bodies still awake.
+	int step(float dampener) {
+		int n = size;
+		double[] x = this.x, y = this.y, xVel = this.xVel, yVel = this.yVel, lastMove = this.lastMove;
+
+		// Sleeping bodies have no velocity, so running them through the kernel leaves them in place
+		kernel.integrate(x, y, xVel, yVel, lastMove, n, dampener);
+
+		int awake = 0;
+		for(int i = 0; i < n; i++) {
+			if(asleep[i]) continue;
+			awake++;
+			sumX[i] += x[i];
+			sumY[i] += y[i];
+			if(++restFrames[i] >= restLimit) {
+				double meanX = sumX[i] / restFrames[i], meanY = sumY[i] / restFrames[i];
+				if(Math.abs(meanX - restX[i]) + Math.abs(meanY - restY[i]) < restDistance) {
+					asleep[i] = true;
+					xVel[i] = yVel[i] = 0;
+					awake--;
+				};
+				restX[i] = meanX;
+				restY[i] = meanY;
+				sumX[i] = sumY[i] = 0;
+				restFrames[i] = 0;
+			};
+		};
+		return awake;
+	};
+
+	// The scalar kernel, also used by VectorKernel for the tail that does not fill a vector
+	static void integrate(double[] x, double[] y, double[] xVel, double[] yVel, double[] lastMove, int from, int to, double dampener) {
+		for(int i = from; i < to; i++) {
+			lastMove[i] = Math.abs(xVel[i]) + Math.abs(yVel[i]);
+			x[i] += xVel[i];
+			y[i] += yVel[i];
+			xVel[i] *= dampener;
+			yVel[i] *= dampener;
+		};
+	};
+
+	private void grow(int capacity) {
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		xVel = Arrays.copyOf(xVel, capacity);
+		yVel = Arrays.copyOf(yVel, capacity);
+		lastMove = Arrays.copyOf(lastMove, capacity);
+		sumX = Arrays.copyOf(sumX, capacity);
+		sumY = Arrays.copyOf(sumY, capacity);
+		restX = Arrays.copyOf(restX, capacity);
+		restY = Arrays.copyOf(restY, capacity);
+		restFrames = Arrays.copyOf(restFrames, capacity);
+		asleep = Arrays.copyOf(asleep, capacity);
+	};
+};
@@ -0,0 +1,160 @@
+// Persistent map from node id to the node's cell: its name, input text and where it stood. The
+// sheet's formulas and edges follow from the inputs, and values from recalculating them, so a
+// CellMap is enough to bring the sheet back.
+//
+// A hash array mapped trie keyed on the id itself: each level takes five bits of the id, low
+// bits first, and keeps only the slots in use behind a bitmap. Nothing is modified in place; put
+// and remove copy the one path from the root down to the changed cell, at most seven arrays,
+// and share every other subtree with the map they started from. Holding on to a map is
+// therefore a snapshot of the whole sheet for the price of a pointer, and maps that grew from
+// the same one are compared in time proportional to what differs between them.
+final class CellMap {
+	static final CellMap empty = new CellMap(0, new Object[0]);
+
+	private final int bitmap;	// Which of the 32 slots at this level are in use
+	private final Object[] entries;	// A Cell or a deeper CellMap per used slot, in slot order
+
+	// One node as the sheet last saw it. Cells are immutable and shared between every map that
+	// holds them.
+	static final class Cell {
+		final int id;
+		final String name, input;
+		final double x, y;	// Position when last edited, where the node reappears if brought back
+
+		Cell(Node node) {
+			id = node.getId();
+			name = node.getName();
+			input = node.getInput();
+			x = node.getX();
+			y = node.getY();
+		};
+
+		// Whether the cells would give the same sheet; position is left to the layout
+		boolean same(Cell other) {
+			return name.equals(other.name) && input.equals(other.input);
+		};
+	};
+
+	interface Change {
+		// before is null for a cell only in the newer map, after for one only in the older
+		void apply(Cell before, Cell after);
+	};
+
+	private CellMap(int bitmap, Object[] entries) {
+		this.bitmap = bitmap;
+		this.entries = entries;
+	};
+
+	Cell get(int id) {
+		CellMap map = this;
+		for(int shift = 0; ; shift += 5) {
+			int bit = bit(id, shift);
+			if((map.bitmap & bit) == 0) return null;
+			Object e = map.entries[map.index(bit)];
+			if(e instanceof Cell) return ((Cell)e).id == id ? (Cell)e : null;
+			map = (CellMap)e;
+		}
+	};
+
+	// Returns this map if it already holds an equivalent cell
+	CellMap put(Cell cell) {
+		return put(cell, 0);
+	};
+
+	private CellMap put(Cell cell, int shift) {
+		int bit = bit(cell.id, shift), i = index(bit);
+		if((bitmap & bit) == 0) {
+			Object[] copy = new Object[entries.length + 1];
+			System.arraycopy(entries, 0, copy, 0, i);
+			copy[i] = cell;
+			System.arraycopy(entries, i, copy, i + 1, entries.length - i);
+			return new CellMap(bitmap | bit, copy);
+		};
+		Object e = entries[i];
+		if(e instanceof CellMap) {
+			CellMap sub = ((CellMap)e).put(cell, shift + 5);
+			return sub == e ? this : with(i, sub);
+		};
+		Cell old = (Cell)e;
+		if(old.id == cell.id) return old.same(cell) ? this : with(i, cell);
+		return with(i, empty.put(old, shift + 5).put(cell, shift + 5));	// Ids are 32 bits, so two always part by the last level
+	};
+
+	CellMap remove(int id) {
+		return remove(id, 0);
+	};
+
+	private CellMap remove(int id, int shift) {
+		int bit = bit(id, shift);
+		if((bitmap & bit) == 0) return this;
+		int i = index(bit);
+		Object e = entries[i];
+		if(e instanceof CellMap) {
+			CellMap sub = ((CellMap)e).remove(id, shift + 5);
+			if(sub == e) return this;
+			if(sub.entries.length == 1 && sub.entries[0] instanceof Cell) return with(i, sub.entries[0]);	// Pulls a lone cell back up
+			return with(i, sub);
+		};
+		if(((Cell)e).id != id) return this;
+		if(entries.length == 1) return empty;
+		Object[] copy = new Object[entries.length - 1];
+		System.arraycopy(entries, 0, copy, 0, i);
+		System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+		return new CellMap(bitmap & ~bit, copy);
+	};
+
+	// Reports every cell that differs between the maps, skipping subtrees they share
+	static void diff(CellMap before, CellMap after, Change change) {
+		diff(before, after, 0, change);
+	};
+
+	private static void diff(CellMap a, CellMap b, int shift, Change change) {
+		if(a == b) return;
+		for(int bits = a.bitmap | b.bitmap; bits != 0; bits &= bits - 1) {
+			int bit = bits & -bits;
+			Object x = (a.bitmap & bit) == 0 ? null : a.entries[a.index(bit)];
+			Object y = (b.bitmap & bit) == 0 ? null : b.entries[b.index(bit)];
+			if(x == y) continue;
+			if(x instanceof CellMap || y instanceof CellMap) {
+				diff(wrap(x, shift + 5), wrap(y, shift + 5), shift + 5, change);
+			} else if(x == null) {
+				change.apply(null, (Cell)y);
+			} else if(y == null) {
+				change.apply((Cell)x, null);
+			} else if(((Cell)x).id != ((Cell)y).id) {
+				change.apply((Cell)x, null);
+				change.apply(null, (Cell)y);
+			} else if(!((Cell)x).same((Cell)y)) {
+				change.apply((Cell)x, (Cell)y);
+			};
+		};
+	};
+
+	// Whether the maps would give the same sheet
+	static boolean same(CellMap a, CellMap b) {
+		boolean[] differs = {false};
+		diff(a, b, (before, after) -> differs[0] = true);
+		return !differs[0];
+	};
+
+	// A slot's entry as a map one level down, so a cell can be compared against a subtree
+	private static CellMap wrap(Object e, int shift) {
+		if(e == null) return empty;
+		if(e instanceof CellMap) return (CellMap)e;
+		return empty.put((Cell)e, shift);
+	};
+
+	private CellMap with(int i, Object entry) {
+		Object[] copy = entries.clone();
+		copy[i] = entry;
+		return new CellMap(bitmap, copy);
+	};
+
+	private static int bit(int id, int shift) {
+		return 1 << ((id >>> shift) & 31);
+	};
+
+	private int index(int bit) {
+		return Integer.bitCount(bitmap & (bit - 1));
+	};
+};
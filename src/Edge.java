@@ -0,0 +1,30 @@
+// A dependency link from a referenced node to the node whose formula references it
+final class Edge {
+	final Node parent;
+	final Node child;
+
+	Edge(Node parent, Node child) {
+		this.parent = parent;
+		this.child = child;
+	};
+
+	// Two nodes referencing each other form two edges; only one of them counts as the connection
+	boolean isPrimary() {
+		return isPrimary(parent, child);
+	};
+
+	// Compares ids first, so only one edge in two looks the reverse link up
+	static boolean isPrimary(Node parent, Node child) {
+		return child.getId() >= parent.getId() || !parent.isChildOf(child);
+	};
+
+	public boolean equals(Object o) {
+		if(!(o instanceof Edge)) return false;
+		Edge e = (Edge) o;
+		return parent == e.parent && child == e.child;
+	};
+
+	public int hashCode() {
+		return 31 * parent.getId() + child.getId();
+	};
+};
@@ -0,0 +1,46 @@
+// Error state of a node, held in place of a value the way a spreadsheet shows #REF! in a cell.
+// A node that reads an erroring parent takes on the very same object instead of evaluating, so
+// an error spreads through the graph with the same cost as a value and nothing is thrown. Only
+// the UI turns it into a message, naming the node it started from.
+final class ErrorValue {
+	enum Code {
+		SYNTAX("#SYNTAX!"),	// The input could not be parsed
+		NAME("#NAME?"),		// Unknown node or function
+		REF("#REF!"),		// A referenced node was deleted
+		CYCLE("#CYCLE!"),	// The node sits on a reference cycle or downstream of one
+		VALUE("#VALUE!");	// Not a number, or columns of different lengths combined
+
+		final String text;
+
+		Code(String text) {
+			this.text = text;
+		};
+	};
+
+	// Thrown by the formula compiler only, and caught where the input is entered
+	static final class Failure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final Code code;
+
+		Failure(Code code, String message) {
+			super(message);
+			this.code = code;
+		};
+	};
+
+	final Code code;
+	final Node origin;
+	final String detail;
+
+	ErrorValue(Code code, Node origin, String detail) {
+		this.code = code;
+		this.origin = origin;
+		this.detail = detail;
+	};
+
+	// What to tell the user about this error as seen from the node
+	String message(Node node) {
+		if(node == origin) return detail;
+		return code.text + " from " + origin.getLabel() + ": " + detail;
+	};
+};
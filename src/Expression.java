@@ -0,0 +1,639 @@
+import java.util.Arrays;
+
+// Compiled form of a node formula. Built once by Node.compile when the input is entered,
+// then walked on every recalculation without touching the source text. References hold the node
+// itself, so the text is regenerated from the tree when it is shown or saved: a renamed node shows
+// up under its new name and a deleted one as @?, without rewriting any strings.
+//
+// A formula that reads a column node is evaluated element-wise over the whole column instead:
+// each operator runs one flat loop over the elements, with scalars broadcast against columns.
+// Every column read by one formula must have the same length; width() reports -1 otherwise, and
+// is checked once for the whole formula. The walk itself learns which subtrees read a column from
+// the subtrees, and keeps intermediate columns in per-thread scratch buffers, one per depth.
+//
+// Subtrees made only of constants are folded into one Constant when compiled, which still writes
+// out the original text. Every other subtree is interned through Graph.intern, so a subexpression
+// appearing in many formulas is a single object; once shared, its result is cached for the
+// current pass and evaluated once however many formulas read it. A pass only reads a subexpression
+// after every node it references has settled, so the cached value is the one each reader would
+// have computed itself.
+abstract class Expression {
+	// Functions are resolved to these opcodes once, when the formula is compiled. Trigonometry is
+	// in degrees. Each evaluation switches on the opcode, which compiles to a jump table, so the
+	// cost of a call doesn't grow with the size of the library.
+	static final int SQRT = 0, SIN = 1, COS = 2, TAN = 3, LOG = 4, EXP = 5, ABS = 6, FLOOR = 7, CEIL = 8, ROUND = 9;	// One argument
+	static final int ATAN2 = 10;	// atan2(y, x)
+	static final int MIN = 11, MAX = 12, SUM = 13, AVG = 14;	// One or more arguments
+	private static final String[] functions = {"sqrt", "sin", "cos", "tan", "log", "exp", "abs", "floor", "ceil", "round",
+			"atan2", "min", "max", "sum", "avg"};
+
+	private static volatile long pass = 1;
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+	private boolean shared = false;
+	private volatile long cachedPass = 0;	// Written after cached, so a thread seeing the pass sees the value
+	private double cached;
+
+	// Starts a new pass, invalidating every cached result. Called before formulas are evaluated
+	// against changed values.
+	static void newPass() {
+		pass++;
+	};
+
+	double evaluate() {
+		if(!shared) return compute();
+		long current = pass;
+		if(cachedPass == current) return cached;
+		double result = compute();
+		cached = result;
+		cachedPass = current;
+		return result;
+	};
+
+	abstract double compute();
+
+	// Marks this as read by more than one formula, or more than once by one
+	void share() {
+		shared = true;
+	};
+
+	// Folds a subtree with only constant operands into its value
+	static Expression fold(Expression e) {
+		return e.isConstant() ? new Constant(e.compute(), e) : e;
+	};
+
+	abstract boolean isConstant();
+
+	// Length of the columns this reads, 0 when it only reads scalars, or -1 when the lengths differ
+	abstract int width();
+
+	// Writes elements [0, n) of a column result into out; only called when width() is n
+	final void evaluate(double[] out, int n) {
+		if(!evaluate(out, n, scratch.get())) Arrays.fill(out, 0, n, evaluate());
+	};
+
+	// Writes elements [0, n) into out and returns true if this reads a column, else returns false
+	// and leaves out alone, for the caller to broadcast evaluate() instead
+	abstract boolean evaluate(double[] out, int n, Scratch scratch);
+
+	// Intermediate columns, taken and given back in stack order and kept for the next evaluation
+	static final class Scratch {
+		private double[][] columns = new double[8][];
+		private int depth = 0;
+
+		double[] take(int n) {
+			if(depth == columns.length) columns = Arrays.copyOf(columns, depth * 2);
+			double[] column = columns[depth];
+			if(column == null || column.length < n) columns[depth] = column = new double[n];
+			depth++;
+			return column;
+		};
+
+		void release() {
+			depth--;
+		};
+	};
+
+	// How tightly this binds when written out: + and - are 1, * and / 2, negation 3, ^ 4 and
+	// single operands 5
+	abstract int precedence();
+
+	// Appends the formula text without spaces or redundant parentheses, as read by the host node
+	abstract void write(StringBuilder out, Node host);
+
+	// Drops every reference to a deleted node; they evaluate to N/A from then on
+	abstract void detach(Node node);
+
+	String source(Node host) {
+		StringBuilder out = new StringBuilder();
+		write(out, host);
+		return out.toString();
+	};
+
+	// Writes an operand, in parentheses if it binds more loosely than its position needs
+	static void write(StringBuilder out, Node host, Expression e, int level) {
+		if(e.precedence() < level) {
+			out.append('(');
+			e.write(out, host);
+			out.append(')');
+		} else e.write(out, host);
+	};
+
+	static int function(String name) {
+		switch(name) {
+			case "sqrt": return SQRT;
+			case "sin": return SIN;
+			case "cos": return COS;
+			case "tan": return TAN;
+			case "log": return LOG;
+			case "exp": return EXP;
+			case "abs": return ABS;
+			case "floor": return FLOOR;
+			case "ceil": return CEIL;
+			case "round": return ROUND;
+			case "atan2": return ATAN2;
+			case "min": return MIN;
+			case "max": return MAX;
+			case "sum": return SUM;
+			case "avg": return AVG;
+			default: return -1;
+		}
+	};
+
+	// Number of arguments the function takes, or -1 for one or more
+	static int arity(int function) {
+		if(function < ATAN2) return 1;
+		return function == ATAN2 ? 2 : -1;
+	};
+
+	// Rounds halves away from zero, as spreadsheets do. Adding 0.5 before flooring would round
+	// 0.49999999999999994 up, and odd integers above 2^52 to the next even one.
+	private static double round(double x) {
+		double a = Math.abs(x), r = Math.floor(a);
+		if(a - r >= 0.5) r += 1;
+		return Math.copySign(r, x);
+	};
+
+	static final class Constant extends Expression {
+		private final double value;
+		private final String text;	// As typed, so it is written back unchanged
+		private final Expression source;	// The subtree this was folded from, if any
+
+		Constant(double value, String text) {
+			this.value = value;
+			this.text = text;
+			this.source = null;
+		};
+
+		Constant(double value, Expression source) {
+			this.value = value;
+			this.text = null;
+			this.source = source;
+		};
+
+		double evaluate() {
+			return value;
+		};
+
+		double compute() {
+			return value;
+		};
+
+		void share() {};
+
+		boolean isConstant() {
+			return true;
+		};
+
+		int width() {
+			return 0;
+		};
+
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			return false;
+		};
+
+		int precedence() {
+			return source == null ? 5 : source.precedence();
+		};
+
+		void write(StringBuilder out, Node host) {
+			if(source == null) out.append(text);
+			else source.write(out, host);
+		};
+
+		void detach(Node node) {};
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Constant)) return false;
+			Constant c = (Constant)o;
+			return source == null ? text.equals(c.text) : source == c.source;
+		};
+
+		public int hashCode() {
+			return source == null ? text.hashCode() : System.identityHashCode(source);
+		};
+	};
+
+	static final class Reference extends Expression {
+		private Node node;	// Null once the node is deleted
+		private final boolean byName;	// Written as @name rather than @id
+
+		Reference(Node node, boolean byName) {
+			this.node = node;
+			this.byName = byName;
+		};
+
+		double evaluate() {
+			return node == null ? Double.NaN : node.peekValue();
+		};
+
+		double compute() {
+			return evaluate();
+		};
+
+		void share() {};
+
+		boolean isConstant() {
+			return false;
+		};
+
+		int width() {
+			if(node == null) return 0;
+			double[] column = node.peekColumn();
+			return column == null ? 0 : column.length;
+		};
+
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			double[] column = node == null ? null : node.peekColumn();
+			if(column == null) return false;
+			System.arraycopy(column, 0, out, 0, n);
+			return true;
+		};
+
+		int precedence() {
+			return 5;
+		};
+
+		void write(StringBuilder out, Node host) {
+			out.append('@');
+			if(node == null) out.append('?');
+			else {
+				// The name is only written if the host reads it back as this node, which it doesn't
+				// when a node of lower id shares it
+				String name = Graph.normalize(node.getName());
+				if(byName && !name.isEmpty() && node.getGraph().find(name, host) == node) out.append(name);
+				else out.append(node.getId());
+			};
+		};
+
+		void detach(Node node) {
+			if(this.node == node) this.node = null;
+		};
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Reference)) return false;
+			Reference r = (Reference)o;
+			return node == r.node && byName == r.byName;
+		};
+
+		public int hashCode() {
+			return System.identityHashCode(node) * 2 + (byName ? 1 : 0);
+		};
+	};
+
+	static final class Negate extends Expression {
+		private final Expression operand;
+
+		Negate(Expression operand) {
+			this.operand = operand;
+		};
+
+		double compute() {
+			return -operand.evaluate();
+		};
+
+		boolean isConstant() {
+			return operand.isConstant();
+		};
+
+		int width() {
+			return operand.width();
+		};
+
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			if(!operand.evaluate(out, n, scratch)) return false;
+			for(int i = 0; i < n; i++) out[i] = -out[i];
+			return true;
+		};
+
+		int precedence() {
+			return 3;
+		};
+
+		void write(StringBuilder out, Node host) {
+			out.append('-');
+			write(out, host, operand, 3);
+		};
+
+		void detach(Node node) {
+			operand.detach(node);
+		};
+
+		// Operands are interned first, so structurally equal trees have identical operands
+		public boolean equals(Object o) {
+			return o instanceof Negate && ((Negate)o).operand == operand;
+		};
+
+		public int hashCode() {
+			return System.identityHashCode(operand);
+		};
+	};
+
+	static final class Binary extends Expression {
+		private final char op;
+		private final Expression left, right;
+
+		Binary(char op, Expression left, Expression right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		};
+
+		double compute() {
+			double a = left.evaluate();
+			double b = right.evaluate();
+			switch(op) {
+				case '+': return a + b;
+				case '-': return a - b;
+				case '*': return a * b;
+				case '/': return a / b;
+				default: return Math.pow(a, b);
+			}
+		};
+
+		boolean isConstant() {
+			return left.isConstant() && right.isConstant();
+		};
+
+		int width() {
+			int a = left.width(), b = right.width();
+			if(a < 0 || b < 0 || (a != 0 && b != 0 && a != b)) return -1;
+			return Math.max(a, b);
+		};
+
+		// The operator is chosen once per column, so each loop body is a single arithmetic op
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			if(!left.evaluate(out, n, scratch)) {
+				if(!right.evaluate(out, n, scratch)) return false;
+				double a = left.evaluate();
+				switch(op) {
+					case '+': for(int i = 0; i < n; i++) out[i] = a + out[i]; break;
+					case '-': for(int i = 0; i < n; i++) out[i] = a - out[i]; break;
+					case '*': for(int i = 0; i < n; i++) out[i] = a * out[i]; break;
+					case '/': for(int i = 0; i < n; i++) out[i] = a / out[i]; break;
+					default: for(int i = 0; i < n; i++) out[i] = Math.pow(a, out[i]);
+				}
+				return true;
+			};
+			double[] b = scratch.take(n);
+			if(!right.evaluate(b, n, scratch)) {
+				double c = right.evaluate();
+				switch(op) {
+					case '+': for(int i = 0; i < n; i++) out[i] += c; break;
+					case '-': for(int i = 0; i < n; i++) out[i] -= c; break;
+					case '*': for(int i = 0; i < n; i++) out[i] *= c; break;
+					case '/': for(int i = 0; i < n; i++) out[i] /= c; break;
+					default: for(int i = 0; i < n; i++) out[i] = Math.pow(out[i], c);
+				}
+			} else {
+				switch(op) {
+					case '+': for(int i = 0; i < n; i++) out[i] += b[i]; break;
+					case '-': for(int i = 0; i < n; i++) out[i] -= b[i]; break;
+					case '*': for(int i = 0; i < n; i++) out[i] *= b[i]; break;
+					case '/': for(int i = 0; i < n; i++) out[i] /= b[i]; break;
+					default: for(int i = 0; i < n; i++) out[i] = Math.pow(out[i], b[i]);
+				}
+			};
+			scratch.release();
+			return true;
+		};
+
+		int precedence() {
+			switch(op) {
+				case '+': case '-': return 1;
+				case '*': case '/': return 2;
+				default: return 4;
+			}
+		};
+
+		// Operators are left associative except ^, and only a single operand may precede a ^
+		void write(StringBuilder out, Node host) {
+			int level = precedence();
+			write(out, host, left, level == 4 ? 5 : level);
+			out.append(op);
+			write(out, host, right, level == 1 ? 2 : 3);
+		};
+
+		void detach(Node node) {
+			left.detach(node);
+			right.detach(node);
+		};
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Binary)) return false;
+			Binary b = (Binary)o;
+			return op == b.op && left == b.left && right == b.right;
+		};
+
+		public int hashCode() {
+			return (op * 31 + System.identityHashCode(left)) * 31 + System.identityHashCode(right);
+		};
+	};
+
+	static final class Call extends Expression {
+		private final int function;
+		private final Expression argument;
+
+		Call(int function, Expression argument) {
+			this.function = function;
+			this.argument = argument;
+		};
+
+		double compute() {
+			double x = argument.evaluate();
+			switch(function) {
+				case SQRT: return Math.sqrt(x);
+				case SIN: return Math.sin(Math.toRadians(x));
+				case COS: return Math.cos(Math.toRadians(x));
+				case TAN: return Math.tan(Math.toRadians(x));
+				case LOG: return Math.log(x);
+				case EXP: return Math.exp(x);
+				case ABS: return Math.abs(x);
+				case FLOOR: return Math.floor(x);
+				case CEIL: return Math.ceil(x);
+				default: return round(x);
+			}
+		};
+
+		boolean isConstant() {
+			return argument.isConstant();
+		};
+
+		int width() {
+			return argument.width();
+		};
+
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			if(!argument.evaluate(out, n, scratch)) return false;
+			switch(function) {
+				case SQRT: for(int i = 0; i < n; i++) out[i] = Math.sqrt(out[i]); break;
+				case SIN: for(int i = 0; i < n; i++) out[i] = Math.sin(Math.toRadians(out[i])); break;
+				case COS: for(int i = 0; i < n; i++) out[i] = Math.cos(Math.toRadians(out[i])); break;
+				case TAN: for(int i = 0; i < n; i++) out[i] = Math.tan(Math.toRadians(out[i])); break;
+				case LOG: for(int i = 0; i < n; i++) out[i] = Math.log(out[i]); break;
+				case EXP: for(int i = 0; i < n; i++) out[i] = Math.exp(out[i]); break;
+				case ABS: for(int i = 0; i < n; i++) out[i] = Math.abs(out[i]); break;
+				case FLOOR: for(int i = 0; i < n; i++) out[i] = Math.floor(out[i]); break;
+				case CEIL: for(int i = 0; i < n; i++) out[i] = Math.ceil(out[i]); break;
+				default: for(int i = 0; i < n; i++) out[i] = round(out[i]);
+			}
+			return true;
+		};
+
+		int precedence() {
+			return 5;
+		};
+
+		void write(StringBuilder out, Node host) {
+			out.append(functions[function]).append('(');
+			argument.write(out, host);
+			out.append(')');
+		};
+
+		void detach(Node node) {
+			argument.detach(node);
+		};
+
+		public boolean equals(Object o) {
+			if(!(o instanceof Call)) return false;
+			Call c = (Call)o;
+			return function == c.function && argument == c.argument;
+		};
+
+		public int hashCode() {
+			return function * 31 + System.identityHashCode(argument);
+		};
+	};
+	// A function of several arguments. Over columns it works element by element like every other
+	// operator, so sum(@a, @b) of two columns is a column of pairwise sums. Given a single column,
+	// min, max, sum and avg aggregate it instead, so sum(@a) is the sum of its elements.
+	static final class MultiCall extends Expression {
+		private final int function;
+		private final Expression[] arguments;
+
+		MultiCall(int function, Expression[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		};
+
+		double compute() {
+			if(arguments.length == 1) {
+				int n = arguments[0].width();
+				if(n > 0) return aggregate(n);
+			};
+			double x = arguments[0].evaluate();
+			switch(function) {
+				case ATAN2: return Math.toDegrees(Math.atan2(x, arguments[1].evaluate()));
+				case MIN: for(int k = 1; k < arguments.length; k++) x = Math.min(x, arguments[k].evaluate()); return x;
+				case MAX: for(int k = 1; k < arguments.length; k++) x = Math.max(x, arguments[k].evaluate()); return x;
+				case SUM: for(int k = 1; k < arguments.length; k++) x += arguments[k].evaluate(); return x;
+				default: for(int k = 1; k < arguments.length; k++) x += arguments[k].evaluate(); return x / arguments.length;
+			}
+		};
+
+		boolean isConstant() {
+			for(Expression argument : arguments) {
+				if(!argument.isConstant()) return false;
+			};
+			return true;
+		};
+
+		int width() {
+			if(arguments.length == 1) return Math.min(arguments[0].width(), 0);	// Aggregated to a scalar
+			int n = 0;
+			for(Expression argument : arguments) {
+				int w = argument.width();
+				if(w < 0 || (w != 0 && n != 0 && w != n)) return -1;
+				n = Math.max(n, w);
+			};
+			return n;
+		};
+
+		// Scalar arguments before the first column are combined as scalars, and broadcast from there
+		boolean evaluate(double[] out, int n, Scratch scratch) {
+			if(arguments.length == 1) return false;
+			boolean column = arguments[0].evaluate(out, n, scratch);
+			double x = column ? 0 : arguments[0].evaluate();
+			double[] b = scratch.take(n);
+			for(int k = 1; k < arguments.length; k++) {
+				if(!arguments[k].evaluate(b, n, scratch)) {
+					double y = arguments[k].evaluate();
+					if(!column) {
+						x = combine(x, y);
+						continue;
+					};
+					Arrays.fill(b, 0, n, y);
+				} else if(!column) {
+					Arrays.fill(out, 0, n, x);
+					column = true;
+				};
+				switch(function) {
+					case ATAN2: for(int i = 0; i < n; i++) out[i] = Math.toDegrees(Math.atan2(out[i], b[i])); break;
+					case MIN: for(int i = 0; i < n; i++) out[i] = Math.min(out[i], b[i]); break;
+					case MAX: for(int i = 0; i < n; i++) out[i] = Math.max(out[i], b[i]); break;
+					default: for(int i = 0; i < n; i++) out[i] += b[i];
+				}
+			};
+			scratch.release();
+			if(!column) return false;
+			if(function == AVG) {
+				for(int i = 0; i < n; i++) out[i] /= arguments.length;
+			};
+			return true;
+		};
+
+		// The single argument's n elements folded into one value
+		private double aggregate(int n) {
+			Scratch buffers = scratch.get();
+			double[] column = buffers.take(n);
+			arguments[0].evaluate(column, n, buffers);
+			double x = column[0];
+			for(int i = 1; i < n; i++) x = combine(x, column[i]);
+			buffers.release();
+			return function == AVG ? x / n : x;
+		};
+
+		private double combine(double x, double y) {
+			switch(function) {
+				case ATAN2: return Math.toDegrees(Math.atan2(x, y));
+				case MIN: return Math.min(x, y);
+				case MAX: return Math.max(x, y);
+				default: return x + y;
+			}
+		};
+
+		int precedence() {
+			return 5;
+		};
+
+		void write(StringBuilder out, Node host) {
+			out.append(functions[function]).append('(');
+			for(int k = 0; k < arguments.length; k++) {
+				if(k > 0) out.append(',');
+				arguments[k].write(out, host);
+			};
+			out.append(')');
+		};
+
+		void detach(Node node) {
+			for(Expression argument : arguments) argument.detach(node);
+		};
+
+		// Arguments are interned, so comparing them by identity compares structure
+		public boolean equals(Object o) {
+			if(!(o instanceof MultiCall)) return false;
+			MultiCall c = (MultiCall)o;
+			if(function != c.function || arguments.length != c.arguments.length) return false;
+			for(int k = 0; k < arguments.length; k++) {
+				if(arguments[k] != c.arguments[k]) return false;
+			};
+			return true;
+		};
+
+		public int hashCode() {
+			int hash = function;
+			for(Expression argument : arguments) hash = hash * 31 + System.identityHashCode(argument);
+			return hash;
+		};
+	};
+};
@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+// Spring layout for the graph. Exact mode tests every pair of nodes, grid mode buckets nodes into
+// a uniform grid so repulsion only looks at neighbouring cells and attraction only follows edges.
+// Repulsion has a hard cutoff at spacing - loose, so with cells that wide both modes apply the
+// same forces; only the summation order differs. Pairs of sleeping nodes are skipped in both
+// modes. Positions are read and forces written straight through the graph's Bodies arrays by slot.
+//
+// The world is unbounded, so the grid is sparse: cells are hashed into a table of two to four
+// buckets per node rather than laid out over the bounding box, and a stray node far away costs one
+// more cell instead of stretching every cell. Cells sharing a bucket are told apart by coordinates.
+class ForceLayout {
+	private final int spacing;
+	private final int loose;
+	private boolean exact = false;
+
+	// Grid buffers, reused between frames
+	private int[] bucketOf = new int[0];
+	private int[] bucketStart = new int[0];
+	private int[] cellNodes = new int[0];	// Node slots sorted by bucket
+	private int[] cellX = new int[0], cellY = new int[0];	// Truncated positions in cellNodes order
+	private int[] cellCol = new int[0], cellRow = new int[0];	// Grid cell in cellNodes order
+
+	ForceLayout(int spacing, int loose) {
+		this.spacing = spacing;
+		this.loose = loose;
+	};
+
+	public boolean isExact() {
+		return exact;
+	};
+
+	public void setExact(boolean exact) {
+		this.exact = exact;
+	};
+
+	public void createForces(Graph graph) {
+		if(exact) createExactForces(graph);
+		else createGridForces(graph);
+	};
+
+	private void createExactForces(Graph graph) {
+		Bodies bodies = graph.getBodies();
+		double[] x = bodies.x, y = bodies.y;
+		for(int i = 0; i < graph.size(); i++) {
+			for(int j = i + 1; j < graph.size(); j++) {
+				if(bodies.isAsleep(i) && bodies.isAsleep(j)) continue;	// Resting pairs are already balanced
+
+				int dX = (int)x[i] - (int)x[j];
+				int dY = (int)y[i] - (int)y[j];
+				double distance = Math.max(Math.abs(dX), Math.abs(dY)); // Results in more square-like arrangements
+				double angle = Math.atan2(dY, dX);
+				if(distance < spacing - loose || (distance > spacing + loose && graph.get(i).isRelated(graph.get(j)))) {
+					double base = 1.0 - distance / spacing;
+					double force = base * Math.abs(base);
+					double dx = Math.cos(angle) * force;
+					double dy = Math.sin(angle) * force;
+					bodies.disturb(i, j);
+					bodies.disturb(j, i);
+					bodies.addForce(i, dx, dy);
+					bodies.addForce(j, -dx, -dy);
+				};
+			};
+		};
+	};
+
+	private void createGridForces(Graph graph) {
+		int n = graph.size();
+		if(n == 0) return;
+		Bodies bodies = graph.getBodies();
+		double[] x = bodies.x, y = bodies.y;
+		if(bucketOf.length < n) {
+			bucketOf = new int[n * 2];
+			cellNodes = new int[n * 2];
+			cellX = new int[n * 2];
+			cellY = new int[n * 2];
+			cellCol = new int[n * 2];
+			cellRow = new int[n * 2];
+		};
+
+		// Cells as wide as the repulsion range, hashed into a power of two number of buckets
+		int cell = spacing - loose;
+		int buckets = Integer.highestOneBit(n) * 4;
+		int mask = buckets - 1;
+
+		// Counting sort of node slots by bucket
+		if(bucketStart.length < buckets + 1) bucketStart = new int[buckets + 1];
+		Arrays.fill(bucketStart, 0, buckets + 1, 0);
+		for(int i = 0; i < n; i++) {
+			int b = bucket(Math.floorDiv((int)x[i], cell), Math.floorDiv((int)y[i], cell)) & mask;
+			bucketOf[i] = b;
+			bucketStart[b + 1]++;
+		};
+		for(int b = 0; b < buckets; b++) bucketStart[b + 1] += bucketStart[b];
+		for(int i = 0; i < n; i++) {
+			int k = bucketStart[bucketOf[i]]++;	// Leaves each start pointing at the next bucket
+			cellNodes[k] = i;
+			cellX[k] = (int)x[i];
+			cellY[k] = (int)y[i];
+			cellCol[k] = Math.floorDiv(cellX[k], cell);
+			cellRow[k] = Math.floorDiv(cellY[k], cell);
+		};
+		for(int b = buckets; b > 0; b--) bucketStart[b] = bucketStart[b - 1];
+		bucketStart[0] = 0;
+
+		// Short-range repulsion between nodes in the same or adjacent cells, taking the nodes of a
+		// cell together so its neighbours are only looked up once
+		for(int start = 0, end; start < n; start = end) {
+			int col = cellCol[start], row = cellRow[start];
+			for(end = start + 1; end < n && cellCol[end] == col && cellRow[end] == row; end++);
+			for(int r = row - 1; r <= row + 1; r++) {
+				for(int c = col - 1; c <= col + 1; c++) {
+					int b = bucket(c, r) & mask;
+					for(int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+						if(cellCol[k] != c || cellRow[k] != r) continue;	// Another cell in the same bucket
+						int j = cellNodes[k];
+						for(int m = start; m < end; m++) {
+							int i = cellNodes[m];
+							if(j <= i) continue;
+							int dx = cellX[m] - cellX[k];
+							int dy = cellY[m] - cellY[k];
+							if(Math.abs(dx) >= cell || Math.abs(dy) >= cell) continue;
+							if(bodies.isAsleep(i) && bodies.isAsleep(j)) continue;	// Resting pairs are already balanced
+							applyForce(bodies, i, j, dx, dy, Math.max(Math.abs(dx), Math.abs(dy)));
+						};
+					};
+				};
+			};
+		};
+
+		// Long-range attraction only along actual connections
+		for(Edge edge : graph.getEdges()) {
+			if(!edge.isPrimary()) continue;
+			int i = edge.parent.getSlot(), j = edge.child.getSlot();
+			if(bodies.isAsleep(i) && bodies.isAsleep(j)) continue;
+			int dx = (int)x[i] - (int)x[j];
+			int dy = (int)y[i] - (int)y[j];
+			double distance = Math.max(Math.abs(dx), Math.abs(dy));
+			if(distance > spacing + loose) applyForce(bodies, i, j, dx, dy, distance);
+		};
+	};
+
+	private static int bucket(int col, int row) {
+		int h = col * 0x9E3779B1 + row * 0x85EBCA6B;
+		return h ^ (h >>> 15);
+	};
+
+	private void applyForce(Bodies bodies, int i, int j, int dx, int dy, double distance) {
+		double base = 1.0 - distance / spacing;
+		double force = base * Math.abs(base);
+
+		// Unit direction without the atan2/cos/sin round trip; atan2(0, 0) points along +x
+		double length = Math.sqrt((double)dx * dx + (double)dy * dy);
+		double fx = length == 0 ? force : dx / length * force;
+		double fy = length == 0 ? 0 : dy / length * force;
+		bodies.disturb(i, j);
+		bodies.disturb(j, i);
+		bodies.addForce(i, fx, fy);
+		bodies.addForce(j, -fx, -fy);
+	};
+};
@@ -0,0 +1,223 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+// Per-phase frame timing for the game loop. Each phase records into a fixed log-linear histogram,
+// so recording never allocates. Once a second the window is rolled over: percentiles are taken
+// into preallocated arrays for the MBean to read, and a line is appended to the file named by
+// the nodecalc.metrics property if it is set.
+//
+// The simulation thread records input through move and frame (a whole tick), the render thread
+// records connections through draw and render (a whole presented frame). Each histogram takes its
+// own uncontended lock, so the rollover on the simulation thread never reads a half-recorded value.
+class FrameMetrics implements FrameMetricsMBean {
+	static final int INPUT = 0, FORCES = 1, MOVE = 2, CONNECTIONS = 3, NODES = 4, OVERLAYS = 5, DRAW = 6, RENDER = 7, FRAME = 8;
+	private static final String[] phases = {"input", "forces", "move", "connections", "nodes", "overlays", "draw", "render", "frame"};
+
+	private final Histogram[] histograms = new Histogram[phases.length];
+	private final double[] p50 = new double[phases.length];
+	private final double[] p99 = new double[phases.length];
+	private final double[] max = new double[phases.length];
+	private volatile int framesPerSecond = 0;
+	private volatile double idleRatio = 0;
+	private volatile int nodeCount = 0;
+	private volatile int edgeCount = 0;
+	private volatile long recalculationsPerSecond = 0;
+
+	private long windowStart = System.nanoTime();
+	private long windowProcessTime = 0;
+	private int windowFrames = 0;
+	private long lastRecalculations = Recalculator.getEvaluations();
+	private PrintWriter dump = null;
+
+	FrameMetrics() {
+		for(int i = 0; i < phases.length; i++) histograms[i] = new Histogram();
+	};
+
+	// Publishes these metrics as nodecalc:type=FrameMetrics and opens the dump file, if any
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("nodecalc:type=FrameMetrics"));
+		} catch(Exception e) {System.err.println("Could not register frame metrics: " + e.getMessage());};
+
+		String path = System.getProperty("nodecalc.metrics");
+		if(path != null) {
+			try {
+				dump = new PrintWriter(new FileWriter(path, true));
+				dump.println("time,fps,idle,nodes,edges,recalcs," + String.join(",", phaseColumns()));
+				dump.flush();
+			} catch(IOException e) {System.err.println("Could not open metrics file: " + e.getMessage());};
+		};
+	};
+
+	// Records the time since start against a phase and returns the current time for chaining
+	public long record(int phase, long start) {
+		long now = System.nanoTime();
+		histograms[phase].record(now - start);
+		return now;
+	};
+
+	public void endFrame(long processTime, Graph graph) {
+		histograms[FRAME].record(processTime);
+		windowProcessTime += processTime;
+		windowFrames++;
+
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		if(elapsed >= 1000000000) {
+			for(int i = 0; i < phases.length; i++) {
+				Histogram h = histograms[i];
+				p50[i] = h.percentile(0.5) / 1000.0;
+				p99[i] = h.percentile(0.99) / 1000.0;
+				synchronized(h) {
+					max[i] = h.max / 1000.0;
+					h.reset();
+				};
+			};
+			long recalculations = Recalculator.getEvaluations();
+			recalculationsPerSecond = (recalculations - lastRecalculations) * 1000000000 / elapsed;
+			lastRecalculations = recalculations;
+			framesPerSecond = (int)(windowFrames * 1000000000L / elapsed);
+			idleRatio = 1 - (double)windowProcessTime / elapsed;
+			nodeCount = graph.size();
+			edgeCount = graph.edgeCount();
+			if(dump != null) writeDump();
+
+			windowStart = now;
+			windowProcessTime = 0;
+			windowFrames = 0;
+		};
+	};
+
+	private void writeDump() {
+		dump.print(System.currentTimeMillis());
+		dump.print(',');
+		dump.print(framesPerSecond);
+		dump.print(',');
+		dump.print(idleRatio);
+		dump.print(',');
+		dump.print(nodeCount);
+		dump.print(',');
+		dump.print(edgeCount);
+		dump.print(',');
+		dump.print(recalculationsPerSecond);
+		for(int i = 0; i < phases.length; i++) {
+			dump.print(',');
+			dump.print(p50[i]);
+			dump.print(',');
+			dump.print(p99[i]);
+			dump.print(',');
+			dump.print(max[i]);
+		};
+		dump.println();
+		dump.flush();
+	};
+
+	private static String[] phaseColumns() {
+		String[] columns = new String[phases.length * 3];
+		for(int i = 0; i < phases.length; i++) {
+			columns[i * 3] = phases[i] + "_p50_us";
+			columns[i * 3 + 1] = phases[i] + "_p99_us";
+			columns[i * 3 + 2] = phases[i] + "_max_us";
+		};
+		return columns;
+	};
+
+	public String[] getPhases() {
+		return phases.clone();
+	};
+
+	public double[] getP50Micros() {
+		return p50.clone();
+	};
+
+	public double[] getP99Micros() {
+		return p99.clone();
+	};
+
+	public double[] getMaxMicros() {
+		return max.clone();
+	};
+
+	public int getFramesPerSecond() {
+		return framesPerSecond;
+	};
+
+	public double getIdleRatio() {
+		return idleRatio;
+	};
+
+	public int getNodeCount() {
+		return nodeCount;
+	};
+
+	public int getEdgeCount() {
+		return edgeCount;
+	};
+
+	public long getRecalculationsPerSecond() {
+		return recalculationsPerSecond;
+	};
+
+	public String getSummary() {
+		StringBuilder s = new StringBuilder();
+		s.append(framesPerSecond).append(" fps, idle ").append(String.format("%.2f", idleRatio));
+		s.append(", ").append(nodeCount).append(" nodes, ").append(edgeCount).append(" edges, ");
+		s.append(recalculationsPerSecond).append(" recalcs/s");
+		for(int i = 0; i < phases.length; i++) {
+			s.append(String.format("; %s p50 %.0fus p99 %.0fus max %.0fus", phases[i], p50[i], p99[i], max[i]));
+		};
+		return s.toString();
+	};
+
+	// Log-linear latency histogram: 8 sub-buckets per power of two of nanoseconds, so any
+	// percentile is within 12.5% of the true value
+	static class Histogram {
+		private static final int subBits = 3;
+		private final long[] counts = new long[(65 - subBits) << subBits];
+		private long total = 0;
+		private long max = 0;
+
+		synchronized void record(long nanos) {
+			if(nanos < 0) nanos = 0;
+			counts[bucket(nanos)]++;
+			total++;
+			if(nanos > max) max = nanos;
+		};
+
+		synchronized long percentile(double p) {
+			if(total == 0) return 0;
+			long rank = (long)Math.ceil(p * total);
+			long seen = 0;
+			for(int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if(seen >= rank) return Math.min(upperBound(b), max);
+			};
+			return max;
+		};
+
+		synchronized void reset() {
+			Arrays.fill(counts, 0);
+			total = 0;
+			max = 0;
+		};
+
+		private static int bucket(long v) {
+			if(v < (1 << subBits)) return (int)v;
+			int exponent = 63 - Long.numberOfLeadingZeros(v);	// >= subBits
+			int sub = (int)(v >>> (exponent - subBits)) & ((1 << subBits) - 1);
+			return ((exponent - subBits + 1) << subBits) + sub;
+		};
+
+		private static long upperBound(int b) {
+			if(b < (1 << subBits)) return b;
+			int exponent = (b >>> subBits) + subBits - 1;
+			long sub = b & ((1 << subBits) - 1);
+			return ((1L << subBits | sub) + 1 << (exponent - subBits)) - 1;
+		};
+	};
+};
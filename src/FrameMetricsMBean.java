@@ -0,0 +1,14 @@
+// Management interface for FrameMetrics. Phase arrays line up with getPhases(); latencies
+// cover the last completed one-second window.
+public interface FrameMetricsMBean {
+	String[] getPhases();
+	double[] getP50Micros();
+	double[] getP99Micros();
+	double[] getMaxMicros();
+	int getFramesPerSecond();
+	double getIdleRatio();
+	int getNodeCount();
+	int getEdgeCount();
+	long getRecalculationsPerSecond();
+	String getSummary();
+};
@@ -0,0 +1,495 @@
+import java.awt.Point;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+// Registry of every node in the sheet. Nodes keep a stable id for their whole lifetime, so
+// @id references never need renumbering, and @name references resolve through a hash lookup.
+//
+// Alongside the live nodes the graph keeps a CellMap of every node's name and input, updated as
+// they are edited. It is persistent, so snapshot is O(1), undo and redo keep whole sheets per
+// step, and a what-if branch is just another History starting from the same map. Going back to a
+// snapshot only touches the nodes that differ from it.
+//
+// Every node also has a rank, kept greater than the rank of each node it reads, so ordering by
+// rank is a topological order the Recalculator can schedule changed nodes by without walking the
+// rest of the sheet. Ranks are raised as links are added and never lowered, and the graph counts
+// the links whose ranks are out of order. That count is only non-zero while a cycle exists or a
+// raise was cut short; ranks are then recomputed over the whole sheet before they are relied on.
+//
+// Edges are found through their parents. A view widened by edgeReach holds the parent of every
+// edge crossing it that spans less; parents of longer edges are also filed in a ReachIndex by how
+// far their edges span, which is re-measured as they and their children move.
+public class Graph implements Iterable<Node> {
+	private final ArrayList<Node> nodes = new ArrayList<Node>(0);	// By slot; nodes are drawn in id order instead
+	private final HashMap<Integer, Node> ids = new HashMap<Integer, Node>();
+	private final HashMap<String, TreeSet<Node>> names = new HashMap<String, TreeSet<Node>>();	// In id order
+	private static final Comparator<Node> byId = Comparator.comparingInt(Node::getId);
+	private final LinkedHashSet<Edge> edges = new LinkedHashSet<Edge>();	// Kept in step with every parent/child link
+	static final int edgeReach = 512;	// Widest span, across or down, of an edge whose parent isn't in reaches
+	private final ReachIndex reaches = new ReachIndex();
+	private final SpatialIndex index = new SpatialIndex(128);
+	private final Bodies bodies = new Bodies();	// Layout state, slot for slot with nodes
+	private final WeakHashMap<Expression, WeakReference<Expression>> expressions = new WeakHashMap<Expression, WeakReference<Expression>>();	// Every live subexpression, by structure
+	private int nextId = 0;
+	private boolean lazy = false;
+	private static final int raiseLimit = 4096;	// Ranks raised by one link before recomputing all of them instead
+	private int misordered = 0;	// Links whose child's rank isn't above its parent's, other than loops
+	private int loops = 0;	// Nodes reading themselves, which no rank can order
+	private boolean rerank = false;	// Whether recomputing every rank might clear misordered
+	private CellMap cells = CellMap.empty;	// Every node's name and input, as of the last edit
+	private LinkedHashSet<Node> rewritten = null;	// Nodes recorded while a restore brings names back
+	private final LinkedHashMap<String, History> branches = new LinkedHashMap<String, History>();
+	private String branch = "main";
+	private History history = new History(cells);
+
+	public Graph() {
+		branches.put(branch, history);
+	};
+
+	// Creates a node centered on the point
+	public Node add(double x, double y, String name) {
+		return insert(new Node(this, nextId++, name), x - Node.size/2, y - Node.size/2);
+	};
+
+	// Recreates a saved node under its old id, with its cached value and position
+	Node restore(int id, String name, String input, double value, double[] column, double x, double y) {
+		nextId = Math.max(nextId, id + 1);
+		Node node = new Node(this, id, name);
+		node.restore(input, value, column);
+		return insert(node, x, y);
+	};
+
+	private Node insert(Node node, double x, double y) {
+		node.setSlot(bodies.add(x, y));
+		nodes.add(node);
+		ids.put(node.getId(), node);
+		index(node, node.getName());
+		index.insert(node);
+		record(node);
+		return node;
+	};
+
+	public void remove(Node node) {
+		ArrayList<Node> children = new ArrayList<Node>(node.getChildren());
+		node.clearParents();		// This clears all connections that the node previously had
+		node.clearChildren();
+
+		// Swap the last node into the freed slot so removal doesn't shift the whole list. Slots only
+		// place a node in the arrays; it is drawn by id, so the order of the rest is kept.
+		int slot = node.getSlot();
+		Node last = nodes.remove(nodes.size() - 1);
+		bodies.remove(slot);
+		if(last != node) {
+			nodes.set(slot, last);
+			last.setSlot(slot);
+		};
+		ids.remove(node.getId());
+		unindex(node, node.getName());
+		index.remove(node);
+		reaches.file(node, 0);
+		cells = cells.remove(node.getId());
+		if(!children.isEmpty()) recalculate(children, true);	// Spreads #REF! to everything that read it
+	};
+
+	// Lazy mode defers recalculation until a value is read, e.g. drawn on screen or saved
+	public boolean isLazy() {
+		return lazy;
+	};
+
+	public void setLazy(boolean lazy) {
+		if(this.lazy && !lazy) {
+			for(Node node : nodes) node.getValue();	// Eager mode expects every value to be current
+		};
+		this.lazy = lazy;
+	};
+
+	// Brings the dependents of edited nodes up to date, or only marks them stale in lazy mode
+	ArrayList<Node> recalculate(Collection<Node> roots, boolean evaluateRoots) {
+		return lazy ? Recalculator.invalidate(roots, evaluateRoots) : Recalculator.propagate(roots, evaluateRoots);
+	};
+
+	// Called whenever a node's name or input changes
+	void record(Node node) {
+		cells = cells.put(new CellMap.Cell(node));
+		if(rewritten != null) rewritten.add(node);
+	};
+
+	// The sheet as it stands, kept intact by later edits
+	public CellMap snapshot() {
+		return cells;
+	};
+
+	// Brings the sheet back to a snapshot of it: nodes missing from the snapshot are removed, the
+	// ones it has that are gone come back under their old ids, and the rest are only touched if
+	// their name or input differs. Whatever changed is then recalculated as after an edit.
+	public void restore(CellMap state) {
+		ArrayList<CellMap.Cell> removed = new ArrayList<CellMap.Cell>(), changed = new ArrayList<CellMap.Cell>();
+		CellMap.diff(cells, state, (before, after) -> {
+			if(after == null) removed.add(before);
+			else changed.add(after);
+		});
+		rewritten = new LinkedHashSet<Node>();
+		for(CellMap.Cell cell : removed) remove(ids.get(cell.id));
+
+		// Every node is back before any input is applied, so references between them resolve
+		ArrayList<Node> roots = new ArrayList<Node>(changed.size());
+		for(CellMap.Cell cell : changed) {
+			Node node = ids.get(cell.id);
+			if(node == null) {
+				nextId = Math.max(nextId, cell.id + 1);
+				node = insert(new Node(this, cell.id, cell.name), cell.x, cell.y);
+			} else if(!node.getName().equals(cell.name)) node.setName(cell.name);
+			roots.add(node);
+		};
+
+		// Renames and nodes coming back can change which node a name means, so formulas that were
+		// rewritten on the way take their text from the snapshot again, even if it didn't differ
+		for(Node node : roots) rewritten.remove(node);
+		for(Node node : rewritten) {
+			CellMap.Cell cell = state.get(node.getId());
+			if(cell != null && ids.get(cell.id) == node) {
+				roots.add(node);
+				changed.add(cell);
+			};
+		};
+		rewritten = null;
+		for(int i = 0; i < roots.size(); i++) roots.get(i).apply(changed.get(i).input);
+		cells = state;
+		if(!roots.isEmpty()) recalculate(roots, true);
+	};
+
+	// Ends an undo step at the sheet as it stands; does nothing if it hasn't changed since
+	public boolean checkpoint() {
+		return history.checkpoint(cells);
+	};
+
+	// Steps back along the current branch, returning false when there is nothing to undo
+	public boolean undo() {
+		CellMap state = history.undo(cells);
+		if(state == null) return false;
+		restore(state);
+		return true;
+	};
+
+	public boolean redo() {
+		CellMap state = history.redo(cells);
+		if(state == null) return false;
+		restore(state);
+		return true;
+	};
+
+	// Starts a what-if branch from the sheet as it stands and switches to it. The branch it came
+	// from keeps its own state and history to switch back to.
+	public String fork() {
+		history.checkpoint(cells);
+		String name = "what-if " + branches.size();
+		history = new History(cells);
+		branch = name;
+		branches.put(name, history);
+		return name;
+	};
+
+	// Switches to the branch after the current one, in the order they were made
+	public String nextBranch() {
+		history.checkpoint(cells);
+		Iterator<String> names = branches.keySet().iterator();
+		while(!names.next().equals(branch));
+		branch = names.hasNext() ? names.next() : branches.keySet().iterator().next();
+		history = branches.get(branch);
+		restore(history.current());
+		return branch;
+	};
+
+	public String getBranch() {
+		return branch;
+	};
+
+	// Makes the sheet as it stands the start of a single branch with nothing to undo, e.g. once loaded
+	void clearHistory() {
+		branches.clear();
+		branch = "main";
+		history = new History(cells);
+		branches.put(branch, history);
+	};
+
+	// Starts a group of edits that are applied and recalculated together
+	public Transaction begin() {
+		return new Transaction(this);
+	};
+
+	public Node get(int slot) {
+		return nodes.get(slot);
+	};
+
+	public Node getById(int id) {
+		return ids.get(id);
+	};
+
+	public int size() {
+		return nodes.size();
+	};
+
+	public Iterator<Node> iterator() {
+		return nodes.iterator();
+	};
+
+	// Topmost node under the point, or null
+	public Node pick(Point p) {
+		return index.pick(p);
+	};
+
+	public void query(double l, double t, double r, double b, ArrayList<Node> out) {
+		index.query(l, t, r, b, out);
+	};
+
+	void moved(Node node) {
+		index.update(node);
+		span(node);
+	};
+
+	Bodies getBodies() {
+		return bodies;
+	};
+
+	// Advances the layout by one frame and returns how many nodes are still awake
+	public int step(float dampener) {
+		int awake = bodies.step(dampener);
+		double[] lastMove = bodies.lastMove;
+		for(int i = 0; i < nodes.size(); i++) {
+			if(lastMove[i] != 0) moved(nodes.get(i));
+		};
+		return awake;
+	};
+
+	public Iterable<Edge> getEdges() {
+		return edges;
+	};
+
+	public int edgeCount() {
+		return edges.size();
+	};
+
+	// Collects the parents of edges spanning more than edgeReach that may cross the rectangle
+	void queryReach(double l, double t, double r, double b, ArrayList<Node> out) {
+		reaches.query(l, t, r, b, out);
+	};
+
+	void link(Node parent, Node child) {
+		if(edges.add(new Edge(parent, child))) {
+			parent.wake();
+			child.wake();
+			if(parent == child) loops++;
+			else if(child.getRank() <= parent.getRank()) {
+				misordered++;
+				raise(child, parent.getRank() + 1);
+			};
+			span(parent, child);
+		};
+	};
+
+	void unlink(Node parent, Node child) {
+		if(edges.remove(new Edge(parent, child))) {
+			parent.wake();
+			child.wake();
+			if(parent == child) loops--;
+			else if(child.getRank() <= parent.getRank()) misordered--;
+			if(misordered > 0) rerank = true;	// May have broken a cycle, at any of its links
+		};
+	};
+
+	// Refiles a node that moved by the span of its edges as they are now. Its parents are only
+	// refiled if the node moved out of their reach; a level higher than needed costs a wider
+	// search but misses nothing, and is corrected when the parent moves.
+	private void span(Node node) {
+		int level = 0;
+		for(Node child : node.getChildren()) level = Math.max(level, ReachIndex.level(distance(node, child)));
+		reaches.file(node, level);
+		for(Node parent : node.getParents()) span(parent, node);
+	};
+
+	private void span(Node parent, Node child) {
+		int level = ReachIndex.level(distance(parent, child));
+		if(level > parent.getReachLevel()) reaches.file(parent, level);
+	};
+
+	// Chebyshev distance, the larger of the spans across and down
+	private double distance(Node parent, Node child) {
+		double[] x = bodies.x, y = bodies.y;
+		int p = parent.getSlot(), c = child.getSlot();
+		return Math.max(Math.abs(x[p] - x[c]), Math.abs(y[p] - y[c]));
+	};
+
+	// Whether every node's rank is above those of the nodes it reads, which fails while the sheet
+	// has a reference cycle. A count below zero is never right, so it is recomputed regardless.
+	boolean isRanked() {
+		if(misordered < 0 || misordered > 0 && rerank) rerankAll();
+		return misordered == 0 && loops == 0;
+	};
+
+	// Lifts the node to at least the given rank and its dependents above it, breadth first. A raise
+	// going round a cycle never settles, so past raiseLimit the rest is left to rerankAll.
+	private void raise(Node node, int rank) {
+		setRank(node, rank);
+		ArrayDeque<Node> queue = new ArrayDeque<Node>();
+		queue.add(node);
+		int budget = raiseLimit;
+		while(!queue.isEmpty()) {
+			Node parent = queue.poll();
+			for(Node child : parent.getChildren()) {
+				if(child == parent || child.getRank() > parent.getRank()) continue;
+				if(--budget < 0) {
+					rerank = true;
+					return;
+				};
+				setRank(child, parent.getRank() + 1);
+				queue.add(child);
+			};
+		};
+	};
+
+	// Changes a rank, counting the node's links that it puts in or out of order. A loop is neither,
+	// and would otherwise be counted from both ends.
+	private void setRank(Node node, int rank) {
+		int old = node.getRank();
+		for(Node parent : node.getParents()) {
+			if(parent == node) continue;
+			int p = parent.getRank();
+			misordered += (rank <= p ? 1 : 0) - (old <= p ? 1 : 0);
+		};
+		for(Node child : node.getChildren()) {
+			if(child == node) continue;
+			int c = child.getRank();
+			misordered += (c <= rank ? 1 : 0) - (c <= old ? 1 : 0);
+		};
+		node.setRank(rank);
+	};
+
+	// Gives every node the length of the longest chain of references leading to it, by a Kahn walk
+	// over the whole sheet. Nodes on or below a cycle are never reached and keep a partial rank.
+	private void rerankAll() {
+		int[] inDegree = new int[nodes.size()];
+		ArrayList<Node> ready = new ArrayList<Node>();
+		for(Node node : nodes) {
+			node.setRank(0);
+			inDegree[node.getSlot()] = node.getParents().size();
+			if(inDegree[node.getSlot()] == 0) ready.add(node);
+		};
+		for(int k = 0; k < ready.size(); k++) {
+			Node parent = ready.get(k);
+			for(Node child : parent.getChildren()) {
+				child.setRank(Math.max(child.getRank(), parent.getRank() + 1));
+				if(--inDegree[child.getSlot()] == 0) ready.add(child);
+			};
+		};
+		misordered = 0;
+		for(Edge edge : edges) {
+			if(edge.child != edge.parent && edge.child.getRank() <= edge.parent.getRank()) misordered++;
+		};
+		rerank = false;
+	};
+
+	public void wakeAll() {
+		for(Node node : nodes) node.wake();
+	};
+
+	// Wakes every node overlapping the rectangle, e.g. the neighbours of a deleted node
+	public void wake(double l, double t, double r, double b) {
+		ArrayList<Node> near = new ArrayList<Node>();
+		index.query(l, t, r, b, near);
+		for(Node node : near) node.wake();
+	};
+
+	// Returns the existing subexpression equal to e, marking it shared, or registers e. Entries go
+	// once no formula holds them.
+	Expression intern(Expression e) {
+		WeakReference<Expression> entry = expressions.get(e);
+		Expression existing = entry == null ? null : entry.get();
+		if(existing == null) {
+			expressions.put(e, new WeakReference<Expression>(e));
+			return e;
+		};
+		existing.share();
+		return existing;
+	};
+
+	// Finds a node by its space-free name, skipping the node doing the lookup. Of several with the
+	// name, the one with the lowest id is found.
+	Node find(String name, Node exclude) {
+		TreeSet<Node> bucket = names.get(name);
+		if(bucket != null) {
+			for(Node node : bucket) {
+				if(node != exclude) return node;
+			};
+		};
+		return null;
+	};
+
+	void rename(Node node, String oldName, String newName) {
+		unindex(node, oldName);
+		index(node, newName);
+	};
+
+	static String normalize(String name) {
+		return name.replace(" ", "");
+	};
+
+	// Buckets are kept in id order, so a name means the same node however the sheet came to hold
+	// it, e.g. after undo brings nodes back. A formula's @name is the bucket's first node, or the
+	// second in the first node's own formula, so a change there can change what formulas reading
+	// those two mean or how they are written. They are compiled while their text still means what
+	// it says, and recorded again once the bucket has changed.
+	private void index(Node node, String name) {
+		TreeSet<Node> bucket = names.computeIfAbsent(normalize(name), k -> new TreeSet<Node>(byId));
+		ArrayList<Node> heads = heads(bucket, node);
+		bindChildren(heads);
+		bucket.add(node);
+		recordChildren(heads);
+	};
+
+	private void unindex(Node node, String name) {
+		String key = normalize(name);
+		TreeSet<Node> bucket = names.get(key);
+		if(bucket != null) {
+			ArrayList<Node> heads = heads(bucket, node);
+			bindChildren(heads);
+			bucket.remove(node);
+			if(bucket.isEmpty()) names.remove(key);
+			recordChildren(heads);
+		};
+	};
+
+	// The nodes the name can mean before or after the node joins or leaves the bucket: the first
+	// two, and the third that moves up if one of them goes. None when two nodes come before it.
+	private static ArrayList<Node> heads(TreeSet<Node> bucket, Node node) {
+		ArrayList<Node> heads = new ArrayList<Node>(3);
+		int before = 0;
+		for(Node head : bucket) {
+			if(heads.size() == 3) break;
+			if(heads.size() < 2 && head.getId() < node.getId()) before++;
+			heads.add(head);
+		};
+		if(before == 2) heads.clear();
+		return heads;
+	};
+
+	private static void bindChildren(ArrayList<Node> heads) {
+		for(Node head : heads) {
+			for(Node child : head.getChildren()) child.bind();
+		};
+	};
+
+	private void recordChildren(ArrayList<Node> heads) {
+		for(Node head : heads) {
+			for(Node child : head.getChildren()) record(child);
+		};
+	};
+};
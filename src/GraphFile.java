@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Binary save format for a whole graph:
+//
+//   int magic, int version
+//   int stringCount, then per string: int byteLength, UTF-8 bytes
+//   int nodeCount, then per node: int id, int name, int input, double value, double x, double y,
+//                                 int columnLength (-1 for a scalar), then that many doubles
+//   int edgeCount, then per edge: int parentId, int childId
+//
+// Version 1 files, written before nodes could hold columns, have no column fields and still load.
+//
+// Names and inputs are stored once in the string table and referred to by index. Loading maps
+// the file and rebuilds parents/children straight from the edge section; cached values are
+// trusted, so no formula is parsed until something upstream of it changes. Errors aren't saved,
+// only the NaN a node holds in their place, so those nodes are worked out again on load.
+class GraphFile {
+	private static final int MAGIC = 0x4E43414C;	// "NCAL"
+	private static final int VERSION = 2;
+
+	public static void save(Graph graph, Path path) throws IOException {
+		ArrayList<String> strings = new ArrayList<String>();
+		HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+		for(Node node : graph) {
+			intern(node.getName(), strings, stringIndex);
+			intern(node.getInput(), strings, stringIndex);
+		};
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+
+			buffer.putInt(strings.size());
+			for(String string : strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				reserve(channel, buffer, 4);
+				buffer.putInt(bytes.length);
+				for(int written = 0; written < bytes.length;) {
+					reserve(channel, buffer, 1);
+					int length = Math.min(buffer.remaining(), bytes.length - written);
+					buffer.put(bytes, written, length);
+					written += length;
+				};
+			};
+
+			reserve(channel, buffer, 4);
+			buffer.putInt(graph.size());
+			for(Node node : graph) {
+				reserve(channel, buffer, 36);
+				buffer.putInt(node.getId());
+				buffer.putInt(stringIndex.get(node.getName()));
+				buffer.putInt(stringIndex.get(node.getInput()));
+				buffer.putDouble(node.getValue());
+				buffer.putDouble(node.getX());
+				buffer.putDouble(node.getY());
+				double[] column = node.getColumn();
+				reserve(channel, buffer, 4);
+				buffer.putInt(column == null ? -1 : column.length);
+				if(column != null) {
+					for(double v : column) {
+						reserve(channel, buffer, 8);
+						buffer.putDouble(v);
+					};
+				};
+			};
+
+			reserve(channel, buffer, 4);
+			buffer.putInt(graph.edgeCount());
+			for(Edge edge : graph.getEdges()) {
+				reserve(channel, buffer, 8);
+				buffer.putInt(edge.parent.getId());
+				buffer.putInt(edge.child.getId());
+			};
+			flush(channel, buffer);
+		};
+	};
+
+	public static Graph load(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.remaining() < 8 || buffer.getInt() != MAGIC) throw new IOException(path + " is not a saved graph");
+			int version = buffer.getInt();
+			if(version != VERSION && version != 1) throw new IOException("Unsupported graph file version " + version);
+
+			String[] strings = new String[buffer.getInt()];
+			for(int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			};
+
+			Graph graph = new Graph();
+			ArrayList<Node> unsettled = new ArrayList<Node>();	// Saved as NaN, maybe holding an error
+			int nodeCount = buffer.getInt();
+			for(int i = 0; i < nodeCount; i++) {
+				int id = buffer.getInt();
+				String name = strings[buffer.getInt()];
+				String input = strings[buffer.getInt()];
+				double value = buffer.getDouble(), x = buffer.getDouble(), y = buffer.getDouble();
+				double[] column = null;
+				if(version >= 2) {
+					int length = buffer.getInt();
+					if(length >= 0) {
+						column = new double[length];
+						buffer.asDoubleBuffer().get(column);
+						buffer.position(buffer.position() + length * 8);
+					};
+				};
+				Node node = graph.restore(id, name, input, value, column, x, y);
+				if(column == null && Double.isNaN(value)) unsettled.add(node);
+			};
+
+			int edgeCount = buffer.getInt();
+			for(int i = 0; i < edgeCount; i++) {
+				Node parent = graph.getById(buffer.getInt());
+				Node child = graph.getById(buffer.getInt());
+				if(parent == null || child == null) throw new IOException("Edge refers to a missing node");
+				child.addParent(parent);
+			};
+
+			// Inputs that aren't formulas take their fault on as they are read, formulas as they are
+			// evaluated, and either passes it on to the nodes downstream
+			for(Node node : unsettled) {
+				if(!node.isFormula()) node.apply(node.getInput());
+			};
+			if(!unsettled.isEmpty()) graph.recalculate(unsettled, true);
+			graph.clearHistory();
+			return graph;
+		} catch(BufferUnderflowException e) {
+			throw new IOException(path + " is truncated");
+		}
+	};
+
+	private static void intern(String s, ArrayList<String> strings, HashMap<String, Integer> stringIndex) {
+		if(!stringIndex.containsKey(s)) {
+			stringIndex.put(s, strings.size());
+			strings.add(s);
+		};
+	};
+
+	private static void reserve(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+		if(buffer.remaining() < bytes) flush(channel, buffer);
+	};
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	};
+};
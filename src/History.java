@@ -0,0 +1,50 @@
+import java.util.ArrayDeque;
+
+// Undo and redo along one branch of a sheet. Each step is the CellMap the sheet had at a
+// checkpoint, so keeping a step costs a pointer however large the sheet is, and consecutive
+// steps share everything but the cells edited between them.
+final class History {
+	private static final int limit = 1000;	// Steps kept to undo; the oldest are dropped first
+	private CellMap saved;	// The sheet as of the last checkpoint
+	private final ArrayDeque<CellMap> undo = new ArrayDeque<CellMap>();
+	private final ArrayDeque<CellMap> redo = new ArrayDeque<CellMap>();
+
+	History(CellMap start) {
+		saved = start;
+	};
+
+	// Makes the sheet as it stands a step of its own, unless nothing changed since the last one.
+	// Returns whether a step was added.
+	boolean checkpoint(CellMap current) {
+		if(current == saved) return false;
+		boolean added = !CellMap.same(saved, current);
+		if(added) {
+			undo.push(saved);
+			if(undo.size() > limit) undo.removeLast();
+			redo.clear();
+		};
+		saved = current;	// Equal content under a new map still saves the next comparison
+		return added;
+	};
+
+	// The step to go back to, or null when there is none
+	CellMap undo(CellMap current) {
+		checkpoint(current);
+		if(undo.isEmpty()) return null;
+		redo.push(saved);
+		saved = undo.pop();
+		return saved;
+	};
+
+	CellMap redo(CellMap current) {
+		checkpoint(current);
+		if(redo.isEmpty()) return null;
+		undo.push(saved);
+		saved = redo.pop();
+		return saved;
+	};
+
+	CellMap current() {
+		return saved;
+	};
+};
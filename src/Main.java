@@ -3,45 +3,82 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.FontMetrics;
+import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.MouseInfo;
 import java.awt.Point;
+import java.awt.Toolkit;
+import java.awt.Window;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
-public class Main extends JPanel implements Runnable, MouseListener, ComponentListener {
+// Three threads share the work. AWT event threads only queue input events. The simulation thread
+// (run) owns the graph: it drains the queue, applies edits and recalculation, steps the layout and
+// captures a Scene. The render thread (renderLoop) draws the newest Scene and flips pages, so a slow
+// tick never blocks presenting a frame and a slow present never holds up the simulation.
+public class Main extends JPanel implements Runnable, MouseListener, MouseWheelListener, ComponentListener {
 	private static final long serialVersionUID = 1L;
 	static int windowWidth = 1000;
 	static int windowHeight = 800;
 	private final int FPS = 60;
-	private boolean running = false;
+	private volatile boolean running = false;
+	private Thread thread;		// Simulation
+	private Thread renderer;
+	
+	// Render thread only
 	private Graphics2D g = null;
 	private BufferedImage image;
-	private Thread thread;
-	private boolean resized = true;
+	private BufferStrategy strategy = null;
+	private Point origin = new Point(0, 0);	// Panel position inside the window the strategy draws on
+	private int bufferWidth = 0, bufferHeight = 0;
+	
+	// Scenes rotate between the simulation (back), the handoff slot (ready) and the renderer (front).
+	// Each side only ever swaps its own scene with the slot, so neither waits on the other.
+	private Scene back = new Scene();
+	private Scene front = new Scene();
+	private final AtomicReference<Scene> ready = new AtomicReference<Scene>(new Scene());
+	
+	// Idle mode: the simulation parks once the layout has settled, until an event unparks it
+	private int awakeNodes = 0;
+	private final long idleRefresh = 1000;	// Milliseconds between safety redraws while idle
+	
+	// Written by event threads, drained by the simulation at the start of each tick
+	private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
 
-	// Controls input
+	// Controls input, simulation thread only
 	private final HashSet<Integer> keysHeld = new HashSet<Integer>(); 
 	private final HashSet<Integer> keysPressed = new HashSet<Integer>();
 	private final HashSet<Character> charsPressed = new HashSet<Character>();
 	private final HashSet<Integer> mouseHeld = new HashSet<Integer>();
 	private final HashSet<Integer> mouseClicked = new HashSet<Integer>();
 	private final HashSet<Integer> mouseReleased = new HashSet<Integer>();
-	private Point mousePos = new Point(0, 0);
+	private Point mousePos = new Point(0, 0);	// In world coordinates
+	private Point screenMouse = new Point(0, 0);
+	private int wheel = 0;	// Notches scrolled since the last tick
+	private Node hovered = null;	// Picked once per frame
 	private int dragging = -1;
 	private int inputNode = -1;
 	private String input = "";
@@ -52,17 +89,35 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 
 	// Font
 	final public static int fontSize = 16;
-	final public static Font font = new Font("Trebuchet MS", Font.PLAIN, fontSize);
+	final public static Font font = Node.Look.font;
 	final FontMetrics fm = getFontMetrics(font);
 	final static int margin = 5;
 	
 	// Objects
-	private ArrayList<Node> nodes = new ArrayList<Node>(0);
+	private Graph graph = new Graph();
 	private Point offset = new Point(0, 0);
+	
+	// Camera: the world point at the panel's top left corner and screen pixels per world unit.
+	// Left drag on empty space or middle drag pans, the wheel zooms around the cursor.
+	private double camX = 0, camY = 0, zoom = 1;
+	private static final double minZoom = 0.05, maxZoom = 4;
+	private static final double zoomStep = 1.1;	// Per wheel notch
+	private static final double detailZoom = 0.5;	// Below this nodes are dots without text
+	private boolean panning = false;
 	private final int spacing = 250;
 	private final int loose = 75;
 	private final float dampener = 0.9f;
 	private final int connectionThicc = 3;
+	private final BasicStroke connectionStroke = new BasicStroke(connectionThicc);
+	private final BasicStroke thinStroke = new BasicStroke(0);	// One pixel at any zoom
+	private static final Color backgroundColor = new Color(0, 0, 0);
+	private static final Color connectionColor = new Color(125, 75, 125);
+	private static final Color[] fadeColors = new Color[256];	// Error message colors by alpha, made on first use
+	private final ForceLayout layout = new ForceLayout(spacing, loose);
+	private final Path saveFile = Path.of("graph.ncalc");
+	
+	// Instrumentation
+	private final FrameMetrics metrics = new FrameMetrics();
 	
 	// Error handling
 	private String errorMessage = "";
@@ -108,21 +163,22 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	public void addNotify() {
 		super.addNotify();
 		if(thread == null) {
-			thread = new Thread(this);
+			running = true;
+			thread = new Thread(this, "simulation");
+			renderer = new Thread(this::renderLoop, "render");
 			thread.start();
+			renderer.start();
 		};
 		addMouseListener(this);
+		addMouseWheelListener(this);
 		addComponentListener(this);
 	};
 
 	public void run() {
-		running = true;
-
+		metrics.register();
+		
 		long startTime;
-		long totalTime = 0;
 		long takenTime = 0;
-		int frameCount = 0;
-		long totalProcessTime = 0;
 		long targetTime = 1000000000 / FPS;
 		long waitDiff = 0;
 
@@ -130,8 +186,7 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 			startTime = System.nanoTime();
 
 			gameUpdate();
-			gameRender();
-			gameDraw();
+			publish();
 
 			// Calculating how long system needs to wait for
         	long processTime = System.nanoTime() - startTime;
@@ -144,23 +199,37 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 			takenTime = System.nanoTime() - startTime;
         	waitDiff = (long) (waitDiff*0.75 + (targetTime - takenTime)*0.25);
         	
-        	frameCount++;
-        	totalTime += takenTime;
-        	totalProcessTime += processTime;
-        	if(totalTime >= 1000000000) {
-        		System.out.print(frameCount + " ");
-        		System.out.println(1 - totalProcessTime / 1000000000f);
-        		frameCount = 0;
-        		totalTime = 0;
-        		totalProcessTime = 0;
-        	}
+        	metrics.endFrame(processTime, graph);
+        	
+        	if(isSettled()) {
+        		LockSupport.parkNanos(this, idleRefresh * 1000000);	// Returns at once if an event arrived during the tick
+        		waitDiff = 0;
+        	};
+		};
+	};
+	
+	private void renderLoop() {
+		while(running) {
+			if(ready.get().fresh) {
+				long startTime = System.nanoTime();
+				gameRender();
+				long drawTime = System.nanoTime();
+				gameDraw();
+				metrics.record(FrameMetrics.DRAW, drawTime);
+				metrics.record(FrameMetrics.RENDER, startTime);
+			} else LockSupport.park(this);
 		};
 	};
 
 	public void gameUpdate() {
+		long t = System.nanoTime();
+		drainEvents();
 		updateMouse();
 
 		checkDelete();
+		checkFile();
+		checkEvaluation();
+		checkHistory();
 		
 		checkInput();
 		receiveInput();
@@ -168,9 +237,13 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 		
 		createNewNodes();
 		updateNodeDrag();
+		updateCamera();
+		t = metrics.record(FrameMetrics.INPUT, t);
 		
 		createForces();
+		t = metrics.record(FrameMetrics.FORCES, t);
 		applyForces();
+		metrics.record(FrameMetrics.MOVE, t);
 		
 		keysPressed.clear();
 		charsPressed.clear();
@@ -179,32 +252,60 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	}
 
 	private void applyForces() {
-		for(Node node : nodes) {
-			node.move(windowWidth, windowHeight, dampener);
-		};
+		awakeNodes = graph.step(dampener);
 	}
+	
+	// Nothing will change on screen until an input event arrives
+	private boolean isSettled() {
+		return awakeNodes == 0 && errorDur == 0 && dragging == -1 && !panning;
+	};
+	
+	private void drainEvents() {
+		Event e;
+		while((e = events.poll()) != null) {
+			switch(e.type) {
+				case Event.KEY_PRESSED:
+					keysPressed.add(e.a);
+					keysHeld.add(e.a);
+					break;
+				case Event.KEY_RELEASED:
+					keysHeld.remove(e.a);
+					break;
+				case Event.CHAR:
+					charsPressed.add((char)e.a);
+					break;
+				case Event.MOUSE_PRESSED:
+					mouseHeld.add(e.a);
+					mouseClicked.add(e.a);
+					break;
+				case Event.MOUSE_RELEASED:
+					mouseHeld.remove(e.a);
+					mouseReleased.add(e.a);
+					break;
+				case Event.RESIZED:
+					windowWidth = e.a;
+					windowHeight = e.b;
+					break;
+				case Event.WHEEL:
+					wheel += e.a;
+					break;
+			};
+		};
+	};
+	
+	// Called from event threads
+	private void post(int type, int a, int b) {
+		events.add(new Event(type, a, b));
+		LockSupport.unpark(thread);
+	};
 
 	private void createForces() {
-		for(int i = 0; i < nodes.size(); i++) {
-			Node node1 = nodes.get(i);
-			Point p1 = node1.getPos();
-			for(int j = i + 1; j < nodes.size(); j++) {
-				Node node2 = nodes.get(j);
-				Point p2 = node2.getPos();
-				
-				Point d = Functions.pointSub(p1, p2);
-				double distance = Math.max(Math.abs(d.x), Math.abs(d.y)); // Results in more square-like arrangements
-				double angle = Functions.direction(d);
-				if(distance < spacing - loose || (distance > spacing + loose && node1.isRelated(node2))) {
-					double base = 1.0 - distance / spacing;
-					double force = base * Math.abs(base);
-					double dx = Math.cos(angle) * force;
-					double dy = Math.sin(angle) * force;
-					node1.addForce(dx, dy);
-					node2.addForce(-dx, -dy);
-				};
-			};
+		if(keysHeld.contains(KeyEvent.VK_CONTROL) && keysPressed.contains(KeyEvent.VK_L)) {
+			layout.setExact(!layout.isExact());
+			graph.wakeAll();
+			error(layout.isExact() ? "Exact layout" : "Grid layout");
 		};
+		layout.createForces(graph);
 	}
 
 	private void handleErrors() {
@@ -216,13 +317,7 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	private void checkInput() {
 		if(mouseClicked.contains(MouseEvent.BUTTON3)) {
 			if(inputNode == -1) {
-				for(int i = 0; i < nodes.size(); i++) {
-					Node node = nodes.get(i);
-					if(node.pointCollide(mousePos)) {
-						startInput(i);
-						return;
-					};
-				};
+				if(hovered != null) startInput(hovered.getId());
 			} else inputNode = -1;
 		} else if(mouseReleased.contains(MouseEvent.BUTTON1) && dragging != inputNode) {
 			inputNode = -1;
@@ -268,11 +363,14 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 			
 			// Read enter input
 			if(keysPressed.contains(KeyEvent.VK_ENTER) || keysPressed.contains(KeyEvent.VK_TAB)) {
-				try {nodes.get(inputNode).updateValue(input, nodes, tabbed, inputNode);}
-				catch(Exception e) {error(e.getMessage() != null ? e.getMessage() : "null error");};
+				Node edited = graph.getById(inputNode);
+				try {
+					edited.updateValue(input, tabbed);
+					if(!tabbed && edited.getError() != null) error(edited.getError().message(edited));
+				} catch(Exception e) {error(e.getMessage() != null ? e.getMessage() : "null error");};
 				
 				if(keysPressed.contains(KeyEvent.VK_TAB)) {
-					input = tabbed ? nodes.get(inputNode).getInput() : nodes.get(inputNode).getName();
+					input = tabbed ? graph.getById(inputNode).getInput() : graph.getById(inputNode).getName();
 					inputChars = new StringBuilder(input);
 					inputPointer = inputChars.length();
 					selectAll = false;
@@ -297,30 +395,41 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	private void updateNodeDrag() {
 		if (mouseHeld.contains(MouseEvent.BUTTON1)) {
 			// Starts dragging
-			if(mouseClicked.contains(MouseEvent.BUTTON1) && dragging == -1) {
-				for(int i = 0; i < nodes.size(); i++) {
-					Node node = nodes.get(i);
-					if(node.pointCollide(mousePos)) {
-						dragging = i;
-						offset = Functions.pointSub(node.getPos(), mousePos);
-						break;
-					};
-				};
+			if(mouseClicked.contains(MouseEvent.BUTTON1) && dragging == -1 && hovered != null) {
+				dragging = hovered.getId();
+				offset = Functions.pointSub(hovered.getPos(), mousePos);
 			};
 			
 			// Dragging physics
 			if (dragging != -1) {
-				Node node = nodes.get(dragging);
+				Node node = graph.getById(dragging);
 				node.drag(mousePos.x + offset.x, mousePos.y + offset.y);
 			}
 		} else {
 			dragging = -1;
 		};
 	}
+	
+	private void updateCamera() {
+		if(mouseClicked.contains(MouseEvent.BUTTON2) || (mouseClicked.contains(MouseEvent.BUTTON1) && hovered == null)) {
+			panning = true;
+		} else if(!mouseHeld.contains(MouseEvent.BUTTON1) && !mouseHeld.contains(MouseEvent.BUTTON2)) {
+			panning = false;
+		};
+		
+		// Keeps the world point under the cursor in place
+		if(wheel != 0) {
+			double newZoom = Functions.clamp(zoom * Math.pow(zoomStep, -wheel), minZoom, maxZoom);
+			camX += screenMouse.x / zoom - screenMouse.x / newZoom;
+			camY += screenMouse.y / zoom - screenMouse.y / newZoom;
+			zoom = newZoom;
+			wheel = 0;
+		};
+	};
 
-	private void startInput(int i) {
-		inputNode = i;
-		input = nodes.get(inputNode).getInput();
+	private void startInput(int id) {
+		inputNode = id;
+		input = graph.getById(inputNode).getInput();
 		inputChars = new StringBuilder(input);
 		inputPointer = inputChars.length();
 		selectAll = false;
@@ -329,31 +438,73 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	
 	private void createNewNodes() {
 		if(keysHeld.contains(KeyEvent.VK_CONTROL) && keysPressed.contains(KeyEvent.VK_N)) {
-			nodes.add(new Node(mousePos.x, mousePos.y, "name"));
-			startInput(nodes.size() - 1);
+			startInput(graph.add(mousePos.x, mousePos.y, "name").getId());
 		};
 	}
 
 	private void checkDelete() {
-		if(keysPressed.contains(KeyEvent.VK_D)) {
-			for(int i = 0; i < nodes.size(); i++) {
-				Node node = nodes.get(i);
-				if(node.pointCollide(mousePos)) {
-					node.clearParents();		// This clears all connections that the node previously had
-					node.clearChildren(i);		// and readjusts all indices that got shifted due to this node being deleted
-					nodes.remove(node);
-					for(; i < nodes.size(); i++) nodes.get(i).updateChildrenName(String.valueOf(i + 1), String.valueOf(i));
-					return;
+		if(keysPressed.contains(KeyEvent.VK_D) && hovered != null) {
+			Node node = hovered;
+			double x = node.getX(), y = node.getY();	// Its slot is reused once removed
+			graph.remove(node);		// Ids are stable, so no other node's references need renumbering
+			graph.wake(x - spacing, y - spacing, x + spacing, y + spacing);
+			if(inputNode == node.getId()) inputNode = -1;
+			if(dragging == node.getId()) dragging = -1;
+			hovered = graph.pick(mousePos);
+		};
+	};
+	
+	private void checkFile() {
+		if(keysHeld.contains(KeyEvent.VK_CONTROL)) {
+			try {
+				if(keysPressed.contains(KeyEvent.VK_S)) {
+					GraphFile.save(graph, saveFile);
+					error("Saved to " + saveFile);
+				} else if(keysPressed.contains(KeyEvent.VK_O)) {
+					setGraph(GraphFile.load(saveFile));
 				};
-			};
+			} catch(IOException e) {error(e.getMessage() != null ? e.getMessage() : "null error");};
+		};
+	};
+	
+	// Ctrl+E switches between recalculating everything on each edit and only what is on screen
+	private void checkEvaluation() {
+		if(keysHeld.contains(KeyEvent.VK_CONTROL) && keysPressed.contains(KeyEvent.VK_E)) {
+			graph.setLazy(!graph.isLazy());
+			error(graph.isLazy() ? "Lazy evaluation" : "Eager evaluation");
 		};
 	};
 	
+	// Ctrl+Z and Ctrl+Y step back and forth through edits, Ctrl+B forks a what-if branch of the
+	// sheet and Ctrl+G switches to the next branch. Not while typing, where the keys are text.
+	private void checkHistory() {
+		graph.checkpoint();	// Whatever the last frame changed is one step
+		if(inputNode != -1 || !keysHeld.contains(KeyEvent.VK_CONTROL)) return;
+		if(keysPressed.contains(KeyEvent.VK_Z)) {
+			if(!graph.undo()) error("Nothing to undo");
+		} else if(keysPressed.contains(KeyEvent.VK_Y)) {
+			if(!graph.redo()) error("Nothing to redo");
+		} else if(keysPressed.contains(KeyEvent.VK_B)) {
+			error("Branched to " + graph.fork());
+		} else if(keysPressed.contains(KeyEvent.VK_G)) {
+			error("Switched to " + graph.nextBranch());
+		} else return;
+		if(graph.getById(dragging) == null) dragging = -1;	// Undo may have removed it
+		hovered = graph.pick(mousePos);
+	};
+	
 	private void updateMouse() {
-		mousePos = MouseInfo.getPointerInfo().getLocation();
+		Point screen = MouseInfo.getPointerInfo().getLocation();
 		if(this.isShowing()) {
-			mousePos = Functions.pointSub(mousePos, this.getLocationOnScreen());
+			screen = Functions.pointSub(screen, this.getLocationOnScreen());
+		};
+		if(panning) {
+			camX -= (screen.x - screenMouse.x) / zoom;
+			camY -= (screen.y - screenMouse.y) / zoom;
 		};
+		screenMouse = screen;
+		mousePos = new Point((int)Math.floor(camX + screen.x / zoom), (int)Math.floor(camY + screen.y / zoom));
+		hovered = graph.pick(mousePos);
 	};
 
 	private void error(String s) {
@@ -362,89 +513,191 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	};
 	
 	
+	void setGraph(Graph graph) {
+		if(this.graph != null) graph.setLazy(this.graph.isLazy());
+		this.graph = graph;
+		inputNode = dragging = -1;
+		hovered = null;
+	};
+	
+	// Captures this tick into the back scene and swaps it into the handoff slot
+	void publish() {
+		Scene scene = back;
+		scene.width = windowWidth;
+		scene.height = windowHeight;
+		scene.camX = camX;
+		scene.camY = camY;
+		scene.zoom = zoom;
+		scene.detail = zoom >= detailZoom;
+		scene.capture(graph, camX, camY, camX + windowWidth / zoom, camY + windowHeight / zoom);
+		
+		scene.editing = inputNode != -1;
+		if(scene.editing) {
+			Node node = graph.getById(inputNode);
+			scene.inputX = (int)node.getX();
+			scene.inputY = (int)node.getY();
+			scene.input = input;
+			scene.inputPointer = inputPointer;
+			scene.selectAll = selectAll;
+			scene.tabbed = tabbed;
+			scene.inputChar = input.isEmpty() ? "" : String.valueOf(inputChars.charAt((inputPointer >= 1 ? inputPointer : 1) - 1));
+		};
+		
+		scene.errorMessage = errorMessage;
+		scene.errorAlpha = 255 * errorDur / errorDurTotal;
+		
+		scene.fresh = true;
+		back = ready.getAndSet(scene);
+		LockSupport.unpark(renderer);
+	};
+	
 	public void gameRender() {
-		if (resized) {
-			if(g != null) {
-				g.dispose();
-			};
-			Dimension r = this.getSize();
-			windowWidth = r.width;
-			windowHeight = r.height;
-			
-			image = new BufferedImage(windowWidth, windowHeight,
-					BufferedImage.TYPE_INT_RGB);
-			g = image.createGraphics();
-			g.setStroke(new BasicStroke(connectionThicc));
+		long t = System.nanoTime();
+		if(ready.get().fresh) {
+			Scene scene = ready.getAndSet(front);	// Only a newer fresh scene can have replaced it since the check
+			scene.fresh = false;
+			front = scene;
+		};
+		Scene scene = front;
+		if(scene.width <= 0 || scene.height <= 0) return;	// Nothing published yet
+		if(scene.width != bufferWidth || scene.height != bufferHeight) createBuffers(scene.width, scene.height);
+		
+		Graphics2D g = this.g;
+		if(strategy != null) {
+			g = (Graphics2D) strategy.getDrawGraphics();
+			g.translate(origin.x, origin.y);
+			g.clipRect(0, 0, scene.width, scene.height);
+			g.setStroke(connectionStroke);
 			g.setFont(font);
-			resized = false;
 		};
 		
 		// Draw background color
-		g.setColor(new Color(0, 0, 0));
-		g.fillRect(0, 0, windowWidth, windowHeight);
+		g.setColor(backgroundColor);
+		g.fillRect(0, 0, scene.width, scene.height);
 		
-		// Draw connections
-		g.setColor(new Color(125, 75, 125));
-		for(int i = 0; i < nodes.size(); i++) {
-			for(int j = i + 1; j < nodes.size(); j++) {
-				Node node1 = nodes.get(i);
-				Node node2 = nodes.get(j);
-				if(node1.isRelated(node2)) {
-					Point pos1 = node1.getCenter();
-					Point pos2 = node2.getCenter();
-					g.drawLine(pos1.x, pos1.y, pos1.x, pos2.y);
-					g.drawLine(pos1.x, pos2.y, pos2.x, pos2.y);
-				};
+		// Everything up to the overlays is drawn in world coordinates
+		AffineTransform screen = g.getTransform();
+		if(scene.zoom != 1) g.scale(scene.zoom, scene.zoom);	// Keeps Java2D on its translate-only fast paths at 1:1
+		g.translate(-scene.camX, -scene.camY);
+		
+		// Draw connections, as plain lines when zoomed out
+		g.setColor(connectionColor);
+		int[] edges = scene.edges;
+		if(scene.detail) {
+			g.setStroke(connectionStroke);
+			for(int i = 0; i < scene.edgeCount * 4; i += 4) {
+				g.drawLine(edges[i], edges[i + 1], edges[i], edges[i + 3]);
+				g.drawLine(edges[i], edges[i + 3], edges[i + 2], edges[i + 3]);
+			};
+		} else {
+			g.setStroke(thinStroke);
+			for(int i = 0; i < scene.edgeCount * 4; i += 4) {
+				g.drawLine(edges[i], edges[i + 1], edges[i + 2], edges[i + 3]);
 			};
 		};
+		t = metrics.record(FrameMetrics.CONNECTIONS, t);
 		
 		// Draw nodes
-		for(int i = 0; i < nodes.size(); i++) {
-			nodes.get(i).draw(g, fm, i);
+		if(scene.detail) {
+			for(int i = 0; i < scene.nodeCount; i++) {
+				Node.draw(g, scene.nodeX[i], scene.nodeY[i], scene.values[i], scene.valueWidths[i], scene.labels[i], scene.labelWidths[i]);
+			};
+		} else {
+			for(int i = 0; i < scene.nodeCount; i++) {
+				Node.drawDot(g, scene.nodeX[i], scene.nodeY[i]);
+			};
 		};
+		t = metrics.record(FrameMetrics.NODES, t);
 		
 		// Draw input text box
-		if(inputNode != -1) {
-			Node node = nodes.get(inputNode);
-			node.drawInput(g, input, fm, inputPointer, selectAll, tabbed);
-			
-			if(!input.isEmpty()) {
-				g.drawString(String.valueOf(inputChars.charAt((inputPointer >= 1 ? inputPointer : 1) - 1)), 0, 50);
-			};
+		if(scene.editing) {
+			g.setStroke(connectionStroke);
+			Node.drawInput(g, scene.inputX, scene.inputY, scene.input, fm, scene.inputPointer, scene.selectAll, scene.tabbed);
+		};
+		g.setTransform(screen);
+		if(scene.editing && !scene.input.isEmpty()) {
+			g.drawString(scene.inputChar, 0, 50);
 		};
 		
 		// Draw error message
-		if(errorDur > 0) {
-			int alpha = 255 * errorDur / errorDurTotal;
-			g.setColor(new Color(255, 255, 255, alpha));
-			g.drawString(errorMessage, margin, windowHeight - margin);
+		if(scene.errorAlpha > 0) {
+			int alpha = scene.errorAlpha;
+			if(fadeColors[alpha] == null) fadeColors[alpha] = new Color(255, 255, 255, alpha);
+			g.setColor(fadeColors[alpha]);
+			g.drawString(scene.errorMessage, margin, scene.height - margin);
 		};
+		
+		if(strategy != null) g.dispose();
+		metrics.record(FrameMetrics.OVERLAYS, t);
 	}
 	
+	// Page flips on the window when its back buffer can be accelerated, otherwise falls back to
+	// drawing into an image that gameDraw copies onto the panel
+	private void createBuffers(int width, int height) {
+		bufferWidth = width;
+		bufferHeight = height;
+		if(g != null) {
+			g.dispose();
+			g = null;
+		};
+		image = null;
+		strategy = null;
+		
+		Window window = SwingUtilities.getWindowAncestor(this);
+		if(window != null && window.isDisplayable() && !GraphicsEnvironment.isHeadless()) {
+			try {
+				if(window.getGraphicsConfiguration().getBufferCapabilities().getBackBufferCapabilities().isAccelerated()) {
+					setIgnoreRepaint(true);
+					window.setIgnoreRepaint(true);
+					window.createBufferStrategy(2);
+					strategy = window.getBufferStrategy();
+					origin = SwingUtilities.convertPoint(this, 0, 0, window);
+				};
+			} catch(Exception e) {strategy = null;};
+		};
+		
+		if(strategy == null) {
+			image = new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_RGB);
+			g = image.createGraphics();
+			g.setStroke(connectionStroke);
+			g.setFont(font);
+		};
+	};
+	
 
 	public void gameDraw() {
-		Graphics2D g2 = (Graphics2D) this.getGraphics();
-		g2.drawImage(image, 0, 0, null);
-		g2.dispose();
+		if(strategy != null) {
+			if(!strategy.contentsLost()) strategy.show();	// A lost frame is simply drawn again next time
+			Toolkit.getDefaultToolkit().sync();
+		} else {
+			Graphics2D g2 = (Graphics2D) this.getGraphics();
+			g2.drawImage(image, 0, 0, null);
+			g2.dispose();
+		};
 	};
 	
 	
 	public void mousePressed(MouseEvent e) { //same thing for mouse buttons
-		int key = e.getButton();
-
-		mouseHeld.add(key);
-		mouseClicked.add(key);
+		post(Event.MOUSE_PRESSED, e.getButton(), 0);
 	}	
 
 	public void mouseReleased(MouseEvent e) {
-		int key = e.getButton();
-		
-		mouseHeld.remove(key);
-		mouseReleased.add(key);
+		post(Event.MOUSE_RELEASED, e.getButton(), 0);
 	}
 	
+	public void mouseWheelMoved(MouseWheelEvent e) {
+		post(Event.WHEEL, e.getWheelRotation(), 0);
+	};
+	
 	public void componentResized(ComponentEvent componentEvent) {
-		resized = true;
+		post(Event.RESIZED, getWidth(), getHeight());
+	};
+	
+	// Exposed while idle: redraw on the next tick
+	protected void paintComponent(Graphics graphics) {
+		super.paintComponent(graphics);
+		LockSupport.unpark(thread);
 	};
 
 	public void mouseEntered(MouseEvent e) {}
@@ -464,15 +717,27 @@ public class Main extends JPanel implements Runnable, MouseListener, ComponentLi
 	}
 	
 	public void addKey(int i) {
-		keysPressed.add(i);
-		keysHeld.add(i);
+		post(Event.KEY_PRESSED, i, 0);
 	};
 	
 	public void removeKey(int i) {
-		keysHeld.remove(i);
+		post(Event.KEY_RELEASED, i, 0);
 	};
 	
 	public void addChar(char ch) {
-		charsPressed.add(ch);
+		post(Event.CHAR, ch, 0);
+	};
+	
+	// Input handed from an event thread to the simulation. Keys, characters and buttons carry
+	// their code in a, the wheel its notches; a resize carries the new width and height in a and b.
+	private static final class Event {
+		static final int KEY_PRESSED = 0, KEY_RELEASED = 1, CHAR = 2, MOUSE_PRESSED = 3, MOUSE_RELEASED = 4, RESIZED = 5, WHEEL = 6;
+		final int type, a, b;
+		
+		Event(int type, int a, int b) {
+			this.type = type;
+			this.a = a;
+			this.b = b;
+		};
 	};
 };
\ No newline at end of file
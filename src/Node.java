@@ -1,134 +1,334 @@
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 
 public class Node {
+	private final Graph graph;
+	private final int id;
+	private int slot = 0;
 	private String name = "";
 	private double value = 0.0;
+	private double[] column = null;	// Set instead of value for a column of values; never modified in place
 	private String input = "0.0";
-	private double x = 0, y = 0, xVel = 0, yVel = 0;
-	private final int size = 64;
+	private Expression formula = null;
+	private ErrorValue error = null;	// Set instead of a value when this or a node it reads failed
+	private ErrorValue fault = null;	// This node's own error, kept until its input changes
+	private boolean stale = false;	// Lazy mode only: an input upstream changed since this was evaluated
+	private long staleMark = 0;	// Lazy mode only: which edit marked this stale and when; see Recalculator.invalidate
+	private int rank = 0;	// Above the rank of every parent unless the graph has a cycle; kept by Graph
+	private int reachLevel = 0;	// Where the graph's ReachIndex files this node, by how far its edges span; kept by it
+	private long reachCell = 0;
+	private static final double[] mismatch = new double[0];	// Never a real result, which has at least one element
+	private final Bodies bodies;	// Position and velocity live in the graph's arrays, at this node's slot
+	static final int size = 64;
 	private final double r2A = Math.sqrt(Math.PI) / 2;
+	private final int[] cells = new int[4];	// Grid cells covered in the graph's spatial index
 	
 	private HashSet<Node> parents = new HashSet<Node>(0);
 	private HashSet<Node> children = new HashSet<Node>(0);
-	private final int recurseLimit = 100;
 	
 	// Front end
-	final int margin = Main.margin;
-	final int fontSize = Main.fontSize;
+	static final int margin = Main.margin;
+	static final int fontSize = Main.fontSize;
 	
-	public Node(double x, double y, String name) {
-		this.x = x - size/2;
-		this.y = y - size/2;
+	// Display text and its width, rebuilt only when the value bits or the name actually change. A
+	// width is measured when first asked for, -1 until then.
+	private long valueBits = 0;
+	private double[] valueColumn = null;
+	private ErrorValue valueError = null;
+	private String valueText = null;
+	private int valueWidth = 0;
+	private String labelName = null;	// Name the label was built from
+	private String label = null;
+	private int labelWidth = 0;
+	
+	Node(Graph graph, int id, String name) {
+		this.graph = graph;
+		this.bodies = graph.getBodies();
+		this.id = id;
 		this.name = name;
 	};
 	
-	public void draw(Graphics2D g, FontMetrics fm, int i) {
-		g.setColor(new Color(150, 100, 150));
-		g.fillOval((int)x, (int)y, size, size);
+	// Drawn from a Scene on the render thread, so it only sees the captured position and text
+	static void draw(Graphics2D g, int x, int y, String stringValue, int sWidth, String nameValue, int nWidth) {
+		g.setColor(Look.fillColor);
+		g.fillOval(x, y, size, size);
 		
-		g.setColor(new Color(255, 255, 255));
-		String stringValue = Double.isNaN(value) ? "N/A" : Double.toString(value);
-		int sWidth = fm.stringWidth(stringValue);
-		String nameValue = "[" + String.valueOf(i) + "] " + name;
-		int nWidth = fm.stringWidth(nameValue);
-		g.drawString(stringValue, (int)x + (size - sWidth)/2, (int)y + (size + fontSize)/2);
-		g.drawString(nameValue, (int)x + (size - nWidth)/2, (int)y + size + fontSize);
+		g.setColor(Look.textColor);
+		g.drawString(stringValue, x + (size - sWidth)/2, y + (size + fontSize)/2);
+		g.drawString(nameValue, x + (size - nWidth)/2, y + size + fontSize);
+	};
+	
+	// Zoomed out stand-in for draw
+	static void drawDot(Graphics2D g, int x, int y) {
+		g.setColor(Look.fillColor);
+		g.fillRect(x, y, size, size);
+	};
+	
+	String getValueText() {
+		if(stale) Recalculator.pull(this);
+		long bits = Double.doubleToRawLongBits(value);
+		if(valueText == null || bits != valueBits || column != valueColumn || error != valueError) {
+			valueBits = bits;
+			valueColumn = column;
+			valueError = error;
+			if(error != null) valueText = error.code.text;
+			else if(column != null) valueText = "{" + column.length + "}";	// Just the length; the values don't fit
+			else valueText = Double.isNaN(value) ? "N/A" : Double.toString(value);
+			valueWidth = -1;
+		};
+		return valueText;
+	};
+	
+	int getValueWidth() {
+		String text = getValueText();
+		if(valueWidth < 0) valueWidth = Look.metrics.stringWidth(text);
+		return valueWidth;
+	};
+	
+	String getLabel() {
+		if(labelName != name) {
+			labelName = name;
+			label = "[" + String.valueOf(id) + "] " + name;
+			labelWidth = -1;
+		};
+		return label;
+	};
+	
+	int getLabelWidth() {
+		String text = getLabel();
+		if(labelWidth < 0) labelWidth = Look.metrics.stringWidth(text);
+		return labelWidth;
+	};
+	
+	// Colours, font and text metrics, loaded on the first draw or width asked for. Main takes its
+	// font from here too, so a sheet that is only calculated, as by Batch, loads neither AWT nor Swing.
+	static final class Look {
+		static final Color fillColor = new Color(150, 100, 150);
+		static final Color textColor = new Color(255, 255, 255);
+		static final Color inputColor = new Color(255, 255, 255);
+		static final Color inputTextColor = new Color(0, 0, 0);
+		static final Font font = new Font("Trebuchet MS", Font.PLAIN, fontSize);
+		static final FontMetrics metrics = measure();
+		
+		// Same metrics a component hands out for the font, without needing one
+		private static FontMetrics measure() {
+			Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+			FontMetrics fm = g.getFontMetrics(font);
+			g.dispose();
+			return fm;
+		};
 	};
 	
 	public void drag(int x, int y) {
-		this.x = x;
-		this.y = y;
-		xVel = yVel = 0;
+		bodies.drag(slot, x, y);
+		graph.moved(this);
 	};
 	
 	public Point getPos() {
-		return new Point((int)x, (int)y);
+		return new Point((int)getX(), (int)getY());
+	};
+	
+	int getSize() {
+		return size;
+	};
+	
+	int[] getCells() {
+		return cells;
+	};
+	
+	void setCells(int left, int top, int right, int bottom) {
+		cells[0] = left;
+		cells[1] = top;
+		cells[2] = right;
+		cells[3] = bottom;
+	};
+	
+	double getX() {
+		return bodies.x[slot];
+	};
+	
+	double getY() {
+		return bodies.y[slot];
 	};
 	
 	public Point getCenter() {
-		return new Point((int)x + size/2, (int)y + size/2);
+		return new Point((int)getX() + size/2, (int)getY() + size/2);
 	};
 		
 	
 	public void addForce(double dx, double dy) {
-		xVel += dx;
-		yVel += dy;
+		bodies.addForce(slot, dx, dy);
+	};
+	
+	public boolean isAsleep() {
+		return bodies.isAsleep(slot);
 	};
 	
-	public void move(int width, int height, float dampener) {
-		x = Functions.clamp(x + xVel, 0, width - size);
-		y = Functions.clamp(y + yVel, 0, height - size);
-		xVel *= dampener;
-		yVel *= dampener;
+	public void wake() {
+		bodies.wake(slot);
 	};
 	
 	public boolean pointCollide(Point p) {
+		double x = getX(), y = getY();
 		return Functions.pointRectCollide(p.x, p.y, x + size/2*(1-r2A), y, x + size/2*(1+r2A), y + size);
 	};
 	
-	public void drawInput(Graphics2D g, String s, FontMetrics fm, int pointer, boolean select, boolean tabbed) {
+	static void drawInput(Graphics2D g, int x, int y, String s, FontMetrics fm, int pointer, boolean select, boolean tabbed) {
 		int sWidth = fm.stringWidth(s);
 		
-		int x1 = (int)x + (size - sWidth)/2;
-		int y1 = (int)y + (tabbed ? size : (size - fontSize)/2);
+		int x1 = x + (size - sWidth)/2;
+		int y1 = y + (tabbed ? size : (size - fontSize)/2);
 		
-		g.setColor(new Color(255, 255, 255));
+		g.setColor(Look.inputColor);
 		g.fillRect(x1 - margin, y1 - margin, sWidth + margin*2, fontSize + margin*2);
 		
-		g.setColor(new Color(0, 0, 0));
+		g.setColor(Look.inputTextColor);
 		g.drawString(s, x1, y1 + fontSize);
 		
 		x1 += fm.stringWidth(s.substring(0, pointer));
 		g.drawLine(x1, y1, x1, y1 + fontSize);
 	};
 	
-	public void updateValue(String s, ArrayList<Node> nodes, boolean tabbed, int i) {
+	// Applies an edit and returns the dependents whose value changed because of it. An input that
+	// fails to parse or evaluate leaves the node holding an error value rather than throwing; only
+	// an invalid name is thrown.
+	public ArrayList<Node> updateValue(String s, boolean tabbed) {
 		if(tabbed) {
 			if(!name.equals(s)) {
-				if(s.matches("^[\sa-zA-Z]*$")) {
-					updateChildrenName(name, s);
-					name = s;
-				} else throw new RuntimeException("Node name cannot contain numbers or symbols");
+				if(s.matches("^[\sa-zA-Z]*$")) setName(s);
+				else throw new RuntimeException("Node name cannot contain numbers or symbols");
 			};
-		} else if(!input.equals(s)) {
+		} else if(!getInput().equals(s)) {
 			double tempValue = value;
-			HashSet<Node> tempParents = new HashSet<Node>(parents);
-			clearParents();
-			try {
-				String noSpace = s.replaceAll(" ", "");
-				if(noSpace.isEmpty()) {
-					value = 0;
-					input = "0.0";
-				} else {
-					input = s;
-					if(noSpace.charAt(0) == '=') {
-						value = eval(noSpace.substring(1), nodes);
-					} else {
-						try {
-							value = Double.valueOf(noSpace);
-							input = String.valueOf(value);
-						} catch(Exception e) {throw new RuntimeException(s + "cannot be parsed as a number");};
+			double[] tempColumn = column;
+			ErrorValue tempError = error;
+			apply(s);
+			if(formula != null || fault != null || Double.doubleToLongBits(tempValue) != Double.doubleToLongBits(value)
+					|| !Arrays.equals(tempColumn, column) || tempError != error) {
+				ArrayList<Node> roots = new ArrayList<Node>(1);
+				roots.add(this);
+				ArrayList<Node> changed = graph.recalculate(roots, true);
+				changed.remove(this);
+				return changed;
+			};
+		};
+		return new ArrayList<Node>(0);
+	};
+	
+	// Takes a new input: numbers and columns are stored, formulas are compiled and linked to
+	// their parents but not evaluated. An invalid input links nothing and sets the node's fault.
+	void apply(String s) {
+		clearParents();
+		formula = null;
+		column = null;
+		error = fault = null;
+		stale = false;
+		String noSpace = s.replaceAll(" ", "");
+		try {
+			if(noSpace.isEmpty()) {
+				value = 0;
+				input = "0.0";
+			} else if(noSpace.charAt(0) == '{') {
+				input = s;
+				column = parseColumn(noSpace);
+				value = Double.NaN;
+			} else {
+				input = s;
+				if(noSpace.charAt(0) == '=') {
+					HashSet<Node> references = new HashSet<Node>();
+					Expression compiled = compile(noSpace.substring(1), references);
+					for(Node node : references) {	// Only link once the whole formula compiled
+						parents.add(node);
+						node.addChild(this);
 					};
+					formula = compiled;
+				} else {
+					try {
+						value = Double.valueOf(noSpace);
+						input = String.valueOf(value);
+					} catch(NumberFormatException e) {throw new ErrorValue.Failure(ErrorValue.Code.VALUE, s + " cannot be parsed as a number");};
 				};
-			} catch(Exception e) {
-				parents = tempParents;
-				for(Node node : parents) node.addChild(this);
-				
-				value = Double.NaN;
-				updateChildrenValue(nodes, 0);
-				throw e;
 			};
-			
-			if(tempValue != value) updateChildrenValue(nodes, 0);
+		} catch(RuntimeException e) {
+			fault = fail(e);
+			value = Double.NaN;
+			column = null;
+			if(!isFormula()) error = fault;	// A formula takes it on when evaluated, passing it to dependents
 		};
+		graph.record(this);
+	};
+	
+	// Renames without checking the name, which the caller has done
+	void setName(String s) {
+		for(Node node : children) node.bind();	// Their @name references must resolve to this node first
+		graph.rename(this, name, s);
+		name = s;
+		graph.record(this);
+		for(Node node : children) graph.record(node);	// Their formulas now read the new name
 	};
 	
-	private double eval(final String str, ArrayList<Node> nodes) {
+	private ErrorValue fail(RuntimeException e) {
+		ErrorValue.Code code = e instanceof ErrorValue.Failure ? ((ErrorValue.Failure)e).code : ErrorValue.Code.SYNTAX;
+		return new ErrorValue(code, this, e.getMessage());
+	};
+	
+	boolean isFormula() {
+		return formula != null || input.replaceAll(" ", "").startsWith("=");
+	};
+	
+	// Everything an edit can change, so a failed transaction can put the node back
+	static final class State {
+		private final String input;
+		private final double value;
+		private final double[] column;
+		private final Expression formula;
+		private final ErrorValue error, fault;
+		private final boolean stale;
+		private final ArrayList<Node> parents;
+		
+		private State(Node node) {
+			input = node.input;
+			value = node.value;
+			column = node.column;
+			formula = node.formula;
+			error = node.error;
+			fault = node.fault;
+			stale = node.stale;
+			parents = new ArrayList<Node>(node.parents);
+		};
+		
+		// Whether the node's value differs from the saved one
+		boolean changed(Node node) {
+			return Double.doubleToLongBits(value) != Double.doubleToLongBits(node.value) || !Arrays.equals(column, node.column)
+					|| error != node.error;
+		};
+	};
+	
+	State save() {
+		return new State(this);
+	};
+	
+	void revert(State state) {
+		clearParents();
+		for(Node node : state.parents) addParent(node);
+		input = state.input;
+		value = state.value;
+		column = state.column;
+		formula = state.formula;
+		error = state.error;
+		fault = state.fault;
+		stale = state.stale;
+		graph.record(this);
+	};
+	
+	private Expression compile(final String str, HashSet<Node> references) {
 		Node host = this;
 	    return new Object() {
 	        int pos = -1, ch;
@@ -145,154 +345,350 @@ public class Node {
 	            return false;
 	        }
 	        
-	        double parse() {
+	        // Shares the node with any other formula containing it, folded if its operands are constants
+	        Expression make(Expression x) {
+	            x = graph.intern(x);
+	            return x.isConstant() ? graph.intern(Expression.fold(x)) : x;
+	        }
+	        
+	        Expression parse() {
 	            nextChar();
-	            double x = parseExpression();
-	            if (pos < str.length()) throw new RuntimeException("Unexpected: " + (char)ch);
+	            Expression x = parseExpression();
+	            if (pos < str.length()) throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "Unexpected: " + (char)ch);
 	            return x;
 	        }
 	        
-	        double parseExpression() {
-	            double x = parseTerm();
+	        Expression parseExpression() {
+	            Expression x = parseTerm();
 	            while(true) {
-	                if      (eat('+')) x += parseTerm(); // addition
-	                else if (eat('-')) x -= parseTerm(); // subtraction
+	                if      (eat('+')) x = make(new Expression.Binary('+', x, parseTerm())); // addition
+	                else if (eat('-')) x = make(new Expression.Binary('-', x, parseTerm())); // subtraction
 	                else return x;
 	            }
 	        }
 	        
-	        double parseTerm() {
-	            double x = parseFactor();
+	        Expression parseTerm() {
+	            Expression x = parseFactor();
 	            while(true) {
-	                if      (eat('*')) x *= parseFactor(); // multiplication
-	                else if (eat('/')) x /= parseFactor(); // division
+	                if      (eat('*')) x = make(new Expression.Binary('*', x, parseFactor())); // multiplication
+	                else if (eat('/')) x = make(new Expression.Binary('/', x, parseFactor())); // division
 	                else return x;
 	            }
 	        }
 	        
-	        double parseFactor() {
-	            if (eat('+')) return +parseFactor(); // unary plus
-	            if (eat('-')) return -parseFactor(); // unary minus
+	        Expression parseFactor() {
+	            if (eat('+')) return parseFactor(); // unary plus
+	            if (eat('-')) return make(new Expression.Negate(parseFactor())); // unary minus
 	            
-	            double x = value;
+	            Expression x;
 	            int startPos = pos;
 	            if (eat('(')) { // parentheses
 	                x = parseExpression();
-	                if (!eat(')')) throw new RuntimeException("Missing ')'");
+	                if (!eat(')')) throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "Missing ')'");
 	            } else if (Character.isDigit(ch) || ch == '.') { // numbers
 	                while (Character.isDigit(ch) || ch == '.') nextChar();
-	                x = Double.parseDouble(str.substring(startPos, pos));
+	                String number = str.substring(startPos, pos);
+	                x = graph.intern(new Expression.Constant(Double.parseDouble(number), number));
 	            } else if (Character.isLetter(ch)) { // functions
 	                while (Character.isLetter(ch)) nextChar();
+	                if (Character.isDigit(ch) && Expression.function(str.substring(startPos, pos) + (char)ch) != -1) nextChar(); // atan2
 	                String func = str.substring(startPos, pos);
+	                int function = Expression.function(func);
+	                if (function == -1) throw new ErrorValue.Failure(ErrorValue.Code.NAME, "Unknown function: " + func);
 	                
+	                ArrayList<Expression> arguments = new ArrayList<Expression>(2);
 	                if (eat('(')) {
-	                    x = parseExpression();
-	                    if (!eat(')')) throw new RuntimeException("Missing ')' after argument of " + func);
-	                } else x = parseFactor();
+	                    do arguments.add(parseExpression());
+	                    while (eat(','));
+	                    if (!eat(')')) throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "Missing ')' after arguments of " + func);
+	                } else arguments.add(parseFactor());
 	                
-	                if (func.equals("sqrt")) x = Math.sqrt(x);
-	                else if (func.equals("sin")) x = Math.sin(Math.toRadians(x));
-	                else if (func.equals("cos")) x = Math.cos(Math.toRadians(x));
-	                else if (func.equals("tan")) x = Math.tan(Math.toRadians(x));
-	                else throw new RuntimeException("Unknown function: " + func);
+	                int arity = Expression.arity(function);
+	                if (arity != -1 && arguments.size() != arity) throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, func + " takes " + arity + (arity == 1 ? " argument" : " arguments"));
+	                if (arity == 1) x = make(new Expression.Call(function, arguments.get(0)));
+	                else x = make(new Expression.MultiCall(function, arguments.toArray(new Expression[0])));
 	            } else if (eat('@')) { // node referencing
-	            	if(Character.isLetter((char) ch)) {
+	            	Node reference = null;
+	            	boolean byName = Character.isLetter((char) ch);
+	            	if(byName) {
 		            	while (Character.isLetter((char) ch)) nextChar();
-		            	boolean unchanged = true;
 		            	String nodeName = str.substring(startPos + 1, pos);
 		            	
-		            	if(nodeName.isBlank()) throw new RuntimeException("Invalid reference to node");
+		            	if(nodeName.isBlank()) throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "Invalid reference to node");
 		            	
-		            	for(Node node : nodes) {
-		            		if(node != host && node.name.replaceAll(" ", "").equals(nodeName)) {
-		            			x = node.value;
-		            			parents.add(node);
-			            		node.addChild(host);
-		            			unchanged = false;
-		            			break;
-		            		};
-		            	};
-		            	
-		            	if(unchanged) throw new RuntimeException("Node " + nodeName + " does not exist");
+		            	reference = graph.find(nodeName, host);
+		            	if(reference == null) throw new ErrorValue.Failure(ErrorValue.Code.NAME, "Node " + nodeName + " does not exist");
 	            	} else if(Character.isDigit((char) ch)) {
 	            		while (Character.isDigit((char) ch)) nextChar();
 		            	String nodeName = str.substring(startPos + 1, pos);
-		            	int nodeIndex = Integer.valueOf(nodeName);
 		            	
 		            	try {
-		            		Node node = nodes.get(nodeIndex);
-		            		x = node.value;
-		            		parents.add(node);
-		            		node.addChild(host);
-	            		} catch(Exception e) {throw new RuntimeException("Node " + nodeName + " does not exist");};
-	            	} else throw new RuntimeException("Invalid reference to node");
-	        	} else throw new RuntimeException("Unexpected character: " + (char)ch);
+		            		reference = graph.getById(Integer.valueOf(nodeName));
+	            		} catch(Exception e) {};
+		            	if(reference == null) throw new ErrorValue.Failure(ErrorValue.Code.NAME, "Node " + nodeName + " does not exist");
+	            	} else if (eat('?')) throw new ErrorValue.Failure(ErrorValue.Code.REF, "References a deleted node");
+	            	else throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "Invalid reference to node");
+	            	references.add(reference);
+	            	x = graph.intern(new Expression.Reference(reference, byName));
+	        	} else throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, ch == -1 ? "Unexpected end of formula" : "Unexpected character: " + (char)ch);
 	            
-	            if (eat('^')) x = Math.pow(x, parseFactor()); // exponentiation
+	            if (eat('^')) x = make(new Expression.Binary('^', x, parseFactor())); // exponentiation
 	            
 	            return x;
 	        }
 	    }.parse();
 	}
 
+	// Formulas are written out from the compiled tree, so references show current names
 	public String getInput() {
-		return input;
+		return formula != null ? "=" + formula.source(this) : input;
 	};
 	
 	public String getName() {
 		return name;
 	};
 	
+	public int getId() {
+		return id;
+	};
+	
+	Graph getGraph() {
+		return graph;
+	};
+	
+	int getRank() {
+		return rank;
+	};
+	
+	void setRank(int rank) {
+		this.rank = rank;
+	};
+	
+	int getReachLevel() {
+		return reachLevel;
+	};
+	
+	long getReachCell() {
+		return reachCell;
+	};
+	
+	void setReach(int level, long cell) {
+		reachLevel = level;
+		reachCell = cell;
+	};
+	
+	int getSlot() {
+		return slot;
+	};
+	
+	void setSlot(int slot) {
+		this.slot = slot;
+	};
+	
+	// Reads bring a stale node up to date first
+	public double getValue() {
+		if(stale) Recalculator.pull(this);
+		return value;
+	};
+	
+	// Why the node has no value, or null when it has one
+	public ErrorValue getError() {
+		if(stale) Recalculator.pull(this);
+		return error;
+	};
+	
+	// The value as it stands, for formulas evaluated by the Recalculator, which has already
+	// brought every node they read up to date. Never pulls, so it is safe off the calling thread.
+	double peekValue() {
+		return value;
+	};
+	
+	ErrorValue peekError() {
+		return error;
+	};
+	
+	double[] peekColumn() {
+		return column;
+	};
+	
+	boolean isStale() {
+		return stale;
+	};
+	
+	// Returns false if the node already was stale
+	boolean markStale(long mark) {
+		if(stale) return false;
+		stale = true;
+		staleMark = mark;
+		return true;
+	};
+	
+	long getStaleMark() {
+		return staleMark;
+	};
+	
+	ErrorValue getFault() {
+		return fault;
+	};
+	
+	// The node's values when it holds a column, otherwise null
+	public double[] getColumn() {
+		if(stale) Recalculator.pull(this);
+		return column;
+	};
+	
+	// Reads "{a, b, c}" as typed, without spaces
+	static double[] parseColumn(String noSpace) {
+		if(noSpace.length() < 3 || noSpace.charAt(noSpace.length() - 1) != '}') throw new ErrorValue.Failure(ErrorValue.Code.SYNTAX, "A column is written as {1, 2, 3}");
+		String[] parts = noSpace.substring(1, noSpace.length() - 1).split(",");
+		double[] values = new double[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			if(parts[i].equals("N/A")) values[i] = Double.NaN;
+			else try {values[i] = Double.parseDouble(parts[i]);}
+			catch(NumberFormatException e) {throw new ErrorValue.Failure(ErrorValue.Code.VALUE, parts[i] + " cannot be parsed as a number");};
+		};
+		return values;
+	};
+	
+	// Writes a column back out in the form parseColumn reads
+	static String formatColumn(double[] values) {
+		StringBuilder s = new StringBuilder("{");
+		for(int i = 0; i < values.length; i++) {
+			if(i > 0) s.append(", ");
+			s.append(Double.isNaN(values[i]) ? "N/A" : Double.toString(values[i]));
+		};
+		return s.append('}').toString();
+	};
+	
 	public void addChild(Node n) {
-		children.add(n);
+		if(children.add(n)) graph.link(this, n);
 	};
 	
 	public void removeChild(Node n) {
-		children.remove(n);
+		if(children.remove(n)) graph.unlink(this, n);
 	};
 	
-	private void updateChildrenValue(ArrayList<Node> nodes, int recurse) {
-		if(recurse > recurseLimit) {
-			value = Double.NaN;
-			throw new RuntimeException("Cyclical referencing error");
+	// Restores saved state as-is; the formula is only compiled once an input upstream changes
+	void restore(String input, double value, double[] column) {
+		this.input = input;
+		this.value = value;
+		this.column = column;
+		formula = null;
+		error = fault = null;
+		stale = false;
+	};
+	
+	void addParent(Node n) {
+		parents.add(n);
+		n.addChild(this);
+	};
+	
+	HashSet<Node> getChildren() {
+		return children;
+	};
+	
+	HashSet<Node> getParents() {
+		return parents;
+	};
+	
+	// Returns the error this node takes on instead of evaluating, or null when it can be evaluated.
+	// A restored formula is compiled here first, which links parents, so this must not run
+	// concurrently.
+	ErrorValue check() {
+		if(formula == null && fault == null) {
+			try {
+				HashSet<Node> references = new HashSet<Node>();
+				formula = compile(input.replaceAll(" ", "").substring(1), references);
+				for(Node node : references) addParent(node);
+			} catch(RuntimeException e) {fault = fail(e);};
 		};
-		try {
-			for(Node node : children) node.updateValue(nodes, recurse);
-		} catch(Exception e) {
-			value = Double.NaN;
-			throw e;
+		if(fault != null) return fault;
+		for(Node node : parents) {
+			if(node.error != null) return node.error;
 		};
+		return null;
 	};
 	
-	private void updateValue(ArrayList<Node> nodes, int recurse) {
-		double tempValue = value;
-		value = eval(input.replaceAll(" ", "").substring(1), nodes);
-		if(tempValue != value) updateChildrenValue(nodes, recurse + 1);
+	// Compiles a restored formula without linking, as its parents already are. Used before a parent
+	// is renamed or deleted, while the text still refers to it.
+	void bind() {
+		if(formula == null && isFormula()) {
+			try {formula = compile(input.replaceAll(" ", "").substring(1), new HashSet<Node>());}
+			catch(RuntimeException e) {};	// Left to fail again when it is next recalculated
+		};
 	};
-
-	public void updateChildrenName(String oldName, String newName) {
-		for(Node node : children) node.updateName(oldName, newName);
+	
+	// Evaluates the compiled formula without storing the result; safe to call from any thread
+	double evaluate() {
+		return formula.evaluate();
+	};
+	
+	// Column counterpart of evaluate, or null when the formula reads no columns. Columns of
+	// different lengths give the mismatch marker, which setColumn turns into #VALUE!.
+	double[] evaluateColumn() {
+		int n = formula.width();
+		if(n == 0) return null;
+		if(n < 0) return mismatch;
+		double[] out = new double[n];
+		formula.evaluate(out, n);
+		return out;
+	};
+	
+	// Stores a recalculated value, returning whether it changed
+	boolean setValue(double newValue) {
+		double tempValue = value;
+		boolean wasOther = column != null || error != null;
+		value = newValue;
+		column = null;
+		error = null;
+		stale = false;
+		return wasOther || Double.doubleToLongBits(tempValue) != Double.doubleToLongBits(value);
 	};
 	
-	private void updateName(String oldName, String newName) {
-		String noSpace = newName.replaceAll(" ", "");
-		input = input.replaceAll(oldName, noSpace);
+	boolean setColumn(double[] newColumn) {
+		if(newColumn == mismatch) return setError(new ErrorValue(ErrorValue.Code.VALUE, this, "Columns of different lengths cannot be combined"));
+		boolean changed = error != null || !Arrays.equals(column, newColumn);
+		value = Double.NaN;
+		column = newColumn;
+		error = null;
+		stale = false;
+		return changed;
 	};
 	
+	boolean setError(ErrorValue newError) {
+		boolean changed = error != newError;
+		value = Double.NaN;
+		column = null;
+		error = newError;
+		stale = false;
+		return changed;
+	};
+
 	public void clearParents() {
 		for(Node node : parents) node.removeChild(this);
 		parents.clear();
 	};
 	
-	public void clearChildren(int i) {
-		String index = "@" + String.valueOf(i);
-		for(Node node : children) node.unlink(name, index);
+	// Called when this node is deleted; the children's references to it are left dangling as @?
+	public void clearChildren() {
+		for(Node node : children) {
+			node.unlink(this);
+			graph.unlink(this, node);
+		};
+		children.clear();
 	};
 	
-	private void unlink(String parentName, String index) {
-		value = Double.NaN;
-		input = input.replaceAll(parentName, "NA").replaceAll(index, "@NA");
+	// Graph.remove recalculates the children afterwards, passing the error on to their dependents
+	private void unlink(Node parent) {
+		bind();
+		parents.remove(parent);
+		if(formula != null) formula.detach(parent);
+		fault = new ErrorValue(ErrorValue.Code.REF, this, "References deleted node " + parent.getLabel());
+		graph.record(this);
+	};
+	
+	boolean isChildOf(Node n) {
+		return parents.contains(n);
 	};
 	
 	public boolean isRelated(Node n) {
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Nodes with an edge to a child more than Graph.edgeReach away, filed by how far their edges
+// span. Level k holds nodes whose edges span at most edgeReach << k, hashed by position into
+// cells that wide, so every parent whose edges can reach a rectangle is in the cells overlapping
+// the rectangle widened by its level's span. The top level takes any span and is a single cell.
+// Level 0 is every other node, which the caller finds through the SpatialIndex instead.
+class ReachIndex {
+	static final int levels = 24;
+	private final ArrayList<HashMap<Long, ArrayList<Node>>> cells = new ArrayList<HashMap<Long, ArrayList<Node>>>();
+	private final int[] counts = new int[levels];	// Nodes filed per level
+
+	ReachIndex() {
+		for(int k = 0; k < levels; k++) cells.add(new HashMap<Long, ArrayList<Node>>());
+	};
+
+	// The first level whose span covers the distance
+	static int level(double distance) {
+		if(distance <= Graph.edgeReach) return 0;
+		return Math.min(Math.getExponent(Math.nextDown(distance / Graph.edgeReach)) + 1, levels - 1);	// NaN and infinity land on top
+	};
+
+	// Files the node at the level, in the cell it is in now; level 0 takes it out
+	void file(Node node, int level) {
+		long cell = level == 0 ? 0 : key(level, node.getX(), node.getY());
+		int old = node.getReachLevel();
+		if(old == level && node.getReachCell() == cell) return;
+		if(old != 0) {
+			HashMap<Long, ArrayList<Node>> grid = cells.get(old);
+			ArrayList<Node> bucket = grid.get(node.getReachCell());
+			bucket.remove(node);
+			if(bucket.isEmpty()) grid.remove(node.getReachCell());
+			counts[old]--;
+		};
+		if(level != 0) {
+			cells.get(level).computeIfAbsent(cell, k -> new ArrayList<Node>(2)).add(node);
+			counts[level]++;
+		};
+		node.setReach(level, cell);
+	};
+
+	// Collects every filed node whose edges may reach the rectangle, each exactly once
+	void query(double l, double t, double r, double b, ArrayList<Node> out) {
+		for(int k = 1; k < levels; k++) {
+			if(counts[k] == 0) continue;
+			HashMap<Long, ArrayList<Node>> grid = cells.get(k);
+			if(k == levels - 1) {
+				for(ArrayList<Node> bucket : grid.values()) out.addAll(bucket);
+				continue;
+			};
+			double reach = span(k) + Node.size;
+			double wl = l - reach, wt = t - reach, wr = r + reach, wb = b + reach;
+			int left = cell(k, wl), top = cell(k, wt), right = cell(k, wr), bottom = cell(k, wb);
+			if((long)(right - left + 1) * (bottom - top + 1) > counts[k]) {
+				// Fewer nodes than cells to look in, as when zoomed far out
+				for(ArrayList<Node> bucket : grid.values()) collect(bucket, wl, wt, wr, wb, out);
+				continue;
+			};
+			for(int cy = top; cy <= bottom; cy++) {
+				for(int cx = left; cx <= right; cx++) {
+					ArrayList<Node> bucket = grid.get(key(cx, cy));
+					if(bucket != null) collect(bucket, wl, wt, wr, wb, out);
+				};
+			};
+		};
+	};
+
+	private static void collect(ArrayList<Node> bucket, double l, double t, double r, double b, ArrayList<Node> out) {
+		for(Node node : bucket) {
+			if(Functions.rectRectCollide(l, t, r, b, node.getX(), node.getY(), node.getX() + Node.size, node.getY() + Node.size)) out.add(node);
+		};
+	};
+
+	private static double span(int level) {
+		return (double)Graph.edgeReach * (1L << level);
+	};
+
+	private static int cell(int level, double v) {
+		return (int)Math.floor(v / span(level));
+	};
+
+	private static long key(int level, double x, double y) {
+		return level == levels - 1 ? 0 : key(cell(level, x), cell(level, y));
+	};
+
+	private static long key(int cx, int cy) {
+		return ((long)cx << 32) | (cy & 0xffffffffL);
+	};
+};
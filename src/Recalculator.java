@@ -0,0 +1,388 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pushes a change through the dependency graph. Nodes are evaluated in order of their rank, which
+// Graph keeps above the rank of every node they read, so every dirty node is evaluated exactly
+// once no matter how many paths lead to it, and nothing here recurses on the call stack. Only
+// nodes with a parent whose value actually changed are queued, so an edit costs what it changes:
+// once values stop changing, nothing further downstream is even looked at.
+//
+// While the sheet has a reference cycle ranks give no order, and the whole affected subgraph is
+// collected and walked in topological order instead (Kahn's algorithm). What is left over sits on
+// the cycle or downstream of it.
+//
+// A node whose formula reads a column produces a whole column in the same pass, through
+// Node.evaluateColumn; everything else about its scheduling is the same as for a scalar.
+//
+// Several roots can be recalculated in one pass, as a Transaction commit does: a node reached from
+// many of them is still evaluated once.
+//
+// A graph in lazy mode skips the pass: invalidate only marks what is downstream as stale, and a
+// stale node is brought up to date by pull when something reads it, together with just the stale
+// nodes it reads. Nodes nobody looks at are never evaluated.
+//
+// Nodes of one rank, or one dependency level, never depend on each other, so a level with at least
+// parallelThreshold nodes to evaluate is spread over a ForkJoinPool. Results are committed in level
+// order on the calling thread, so the outcome matches a serial pass.
+//
+// Nothing here throws. A node that cannot be evaluated, because its formula is broken, a parent
+// holds an error or it sits on a cycle, stores an ErrorValue instead and passes it on like a value.
+class Recalculator {
+	private static final ForkJoinPool pool = ForkJoinPool.commonPool();
+	private static final int chunk = 64;
+	private static int parallelThreshold = Integer.getInteger("nodecalc.parallelThreshold", 1024);
+	private static final AtomicLong evaluations = new AtomicLong();	// Formulas evaluated since startup
+	private static final AtomicLong invalidations = new AtomicLong();	// Calls to invalidate since startup
+
+	public static int getParallelThreshold() {
+		return parallelThreshold;
+	};
+
+	public static void setParallelThreshold(int threshold) {
+		parallelThreshold = Math.max(1, threshold);
+	};
+
+	public static long getEvaluations() {
+		return evaluations.get();
+	};
+
+	// Recalculates everything downstream of the roots. With evaluateRoots, roots holding a
+	// formula are evaluated as well, in dependency order, and reported if their value changed;
+	// other roots are taken as already holding their new value.
+	static ArrayList<Node> propagate(Collection<Node> roots, boolean evaluateRoots) {
+		if(roots.isEmpty()) return new ArrayList<Node>(0);
+		if(!roots.iterator().next().getGraph().isRanked()) return propagateAll(roots, evaluateRoots);
+		Expression.newPass();
+
+		// Dirty nodes by rank; a node is queued at most once, and sources never
+		TreeMap<Integer, ArrayList<Node>> dirty = new TreeMap<Integer, ArrayList<Node>>();
+		HashSet<Node> queued = new HashSet<Node>();
+		ArrayList<Node> sources = new ArrayList<Node>();	// Roots whose change is pushed to their children as-is
+		for(Node root : roots) {
+			if(!queued.add(root)) continue;
+			if(evaluateRoots && root.isFormula()) queue(root, dirty);
+			else sources.add(root);
+		};
+		for(Node source : sources) queueChildren(source, queued, dirty);
+
+		ArrayList<Node> changed = new ArrayList<Node>();
+		Level level = new Level();
+		while(!dirty.isEmpty()) {
+			ArrayList<Node> work = dirty.pollFirstEntry().getValue();
+			level.evaluate(work);
+			for(int k = 0; k < work.size(); k++) {
+				Node node = work.get(k);
+				if(level.store(node, k)) {
+					changed.add(node);
+					queueChildren(node, queued, dirty);
+				};
+			};
+		};
+		return changed;
+	};
+
+	private static void queue(Node node, TreeMap<Integer, ArrayList<Node>> dirty) {
+		dirty.computeIfAbsent(node.getRank(), k -> new ArrayList<Node>()).add(node);
+	};
+
+	private static void queueChildren(Node node, HashSet<Node> queued, TreeMap<Integer, ArrayList<Node>> dirty) {
+		for(Node child : node.getChildren()) {
+			if(queued.add(child)) queue(child, dirty);
+		};
+	};
+
+	// propagate for a sheet with a cycle: everything downstream of the roots is collected and walked
+	// in topological order, and whatever cannot be ordered takes a cycle error
+	private static ArrayList<Node> propagateAll(Collection<Node> roots, boolean evaluateRoots) {
+		ArrayList<Node> affected = new ArrayList<Node>();
+		HashMap<Node, Integer> index = new HashMap<Node, Integer>();
+		int distinct = collect(roots, affected, index);
+		Expression.newPass();
+		int n = affected.size();
+		int[] inDegree = inDegrees(affected, index);
+		boolean[] source = new boolean[n];	// Roots whose change is pushed to their children as-is
+
+		// Walk the affected subgraph one dependency level at a time. A node is only evaluated
+		// when one of its parents actually changed, so propagation stops early on equal values.
+		boolean[] pending = new boolean[n];
+		ArrayList<Node> level = new ArrayList<Node>();
+		for(int i = 0; i < distinct; i++) {
+			Node root = affected.get(i);
+			source[i] = !(evaluateRoots && root.isFormula());
+			pending[i] = !source[i];
+			if(inDegree[i] == 0) level.add(root);
+		};
+		return run(affected, index, inDegree, source, pending, level, false);
+	};
+
+	// Lazy counterpart of propagate: marks everything downstream of the roots stale in one walk and
+	// returns the nodes it marked. The walk stops at nodes already stale, since everything below
+	// those is stale too, so an edit costs O(newly affected). Values are computed by pull once read.
+	// Each node is marked with the edit and its place in the walk, roots first as propagate collects
+	// them, so pull can name the same node as the origin of a cycle: the edit closing a cycle is the
+	// newest to reach it, and its root sits on it.
+	static ArrayList<Node> invalidate(Collection<Node> roots, boolean evaluateRoots) {
+		long mark = invalidations.incrementAndGet() << 32 | 0xffffffffL;	// The edit above, counting down in the low bits
+		ArrayList<Node> marked = new ArrayList<Node>();
+		for(Node root : roots) {
+			if(evaluateRoots && root.isFormula() && root.markStale(mark)) marked.add(root);
+			mark--;
+		};
+		ArrayList<Node> queue = new ArrayList<Node>(roots);
+		for(int i = 0; i < queue.size(); i++) {
+			for(Node child : queue.get(i).getChildren()) {
+				if(child.markStale(mark--)) {
+					marked.add(child);
+					queue.add(child);
+				};
+			};
+		};
+		return marked;
+	};
+
+	// Brings a stale node up to date: it and every stale node it reads, directly or not, are
+	// evaluated parents first in the same level walk propagate uses. Fresh parents are read as-is.
+	static void pull(Node node) {
+		ArrayList<Node> affected = new ArrayList<Node>();
+		HashMap<Node, Integer> index = new HashMap<Node, Integer>();
+		affected.add(node);
+		index.put(node, 0);
+		for(int i = 0; i < affected.size(); i++) {
+			for(Node parent : affected.get(i).getParents()) {
+				if(parent.isStale() && !index.containsKey(parent)) {
+					index.put(parent, affected.size());
+					affected.add(parent);
+				};
+			};
+		};
+		Expression.newPass();
+		int n = affected.size();
+		int[] inDegree = inDegrees(affected, index);
+		boolean[] pending = new boolean[n];
+		Arrays.fill(pending, true);
+		ArrayList<Node> level = new ArrayList<Node>();
+		for(int i = 0; i < n; i++) {
+			if(inDegree[i] == 0) level.add(affected.get(i));
+		};
+		run(affected, index, inDegree, new boolean[n], pending, level, true);
+	};
+
+	// Walks the affected subgraph one dependency level at a time, starting from the given level.
+	// Children outside the affected set are left alone. Marked is set when the nodes come from pull,
+	// all stale and marked by invalidate.
+	private static ArrayList<Node> run(ArrayList<Node> affected, HashMap<Node, Integer> index, int[] inDegree,
+			boolean[] source, boolean[] pending, ArrayList<Node> level, boolean marked) {
+		int n = affected.size();
+		ArrayList<Node> changed = new ArrayList<Node>();
+		ArrayList<Node> next = new ArrayList<Node>();
+		ArrayList<Node> work = new ArrayList<Node>();
+		Level evaluator = new Level();
+		int visited = 0;
+
+		while(!level.isEmpty()) {
+			work.clear();
+			for(Node node : level) {
+				int i = index.get(node);
+				if(!source[i] && pending[i]) work.add(node);
+			};
+			evaluator.evaluate(work);
+
+			for(int k = 0; k < work.size(); k++) {
+				Node node = work.get(k);
+				if(evaluator.store(node, k)) {
+					changed.add(node);
+					for(Node child : node.getChildren()) {
+						Integer i = index.get(child);
+						if(i != null) pending[i] = true;
+					};
+				};
+			};
+
+			for(Node node : level) {
+				boolean pushed = source[index.get(node)];
+				for(Node child : node.getChildren()) {
+					Integer i = index.get(child);
+					if(i == null) continue;
+					if(pushed) pending[i] = true;
+					if(--inDegree[i] == 0) next.add(child);
+				};
+			};
+			visited += level.size();
+
+			ArrayList<Node> temp = level;
+			level = next;
+			next = temp;
+			next.clear();
+		};
+
+		// Whatever never reached an in-degree of zero sits on a cycle or downstream of one. They share
+		// one error, named after the first of them in affected order. Pulled nodes go by their stale
+		// marks instead, which give the order propagate would have found them in, and take the error a
+		// parent got from an earlier pull if the same edit marked its origin first.
+		if(visited < n) {
+			Node origin = null;
+			ErrorValue cycle = null;
+			for(int i = 0; i < n; i++) {
+				if(inDegree[i] == 0) continue;
+				Node node = affected.get(i);
+				if(origin == null || marked && node.getStaleMark() > origin.getStaleMark()) {
+					origin = node;
+					cycle = null;
+				};
+				if(!marked) continue;
+				for(Node parent : node.getParents()) {
+					ErrorValue error = parent.peekError();
+					Integer k = index.get(parent);
+					if(error == null || error.code != ErrorValue.Code.CYCLE || k != null && inDegree[k] > 0) continue;
+					long mark = error.origin.getStaleMark();
+					if(mark >>> 32 == node.getStaleMark() >>> 32 && mark > origin.getStaleMark()) {
+						origin = error.origin;
+						cycle = error;
+					};
+				};
+			};
+			if(cycle == null) cycle = new ErrorValue(ErrorValue.Code.CYCLE, origin, "Cyclical referencing error");
+			for(int i = 0; i < n; i++) {
+				if(inDegree[i] > 0 && affected.get(i).setError(cycle) && !source[i]) changed.add(affected.get(i));
+			};
+		};
+		return changed;
+	};
+
+	// Whether any root sits on a reference cycle, or downstream of one, so it could never be
+	// evaluated. Checked before a transaction touches anything. Ranks in order rule out any cycle.
+	static boolean blocked(Collection<Node> roots) {
+		if(roots.isEmpty() || roots.iterator().next().getGraph().isRanked()) return false;
+		ArrayList<Node> affected = new ArrayList<Node>();
+		HashMap<Node, Integer> index = new HashMap<Node, Integer>();
+		collect(roots, affected, index);
+		int[] inDegree = inDegrees(affected, index);
+		ArrayList<Node> ready = new ArrayList<Node>();
+		for(int i = 0; i < affected.size(); i++) {
+			if(inDegree[i] == 0) ready.add(affected.get(i));
+		};
+		for(int k = 0; k < ready.size(); k++) {
+			for(Node child : ready.get(k).getChildren()) {
+				if(--inDegree[index.get(child)] == 0) ready.add(child);
+			};
+		};
+		for(Node root : roots) {
+			if(inDegree[index.get(root)] > 0) return true;
+		};
+		return false;
+	};
+
+	// Everything downstream of the roots, roots first, each once. Returns how many roots there were
+	// without repeats, which are the first that many affected nodes.
+	private static int collect(Collection<Node> roots, ArrayList<Node> affected, HashMap<Node, Integer> index) {
+		for(Node root : roots) {
+			if(!index.containsKey(root)) {
+				index.put(root, affected.size());
+				affected.add(root);
+			};
+		};
+		int distinct = affected.size();
+		for(int i = 0; i < affected.size(); i++) {
+			for(Node child : affected.get(i).getChildren()) {
+				if(!index.containsKey(child)) {
+					index.put(child, affected.size());
+					affected.add(child);
+				};
+			};
+		};
+		return distinct;
+	};
+
+	// Counts, for each affected node, its parents inside the affected set
+	private static int[] inDegrees(ArrayList<Node> affected, HashMap<Node, Integer> index) {
+		int[] inDegree = new int[affected.size()];
+		for(Node node : affected) {
+			for(Node child : node.getChildren()) {
+				Integer i = index.get(child);
+				if(i != null) inDegree[i]++;
+			};
+		};
+		return inDegree;
+	};
+
+	// Scratch space for evaluating one level at a time, grown as needed and reused across levels
+	private static final class Level {
+		private double[] results = new double[0];
+		private double[][] columns = new double[0][];
+		private ErrorValue[] errors = new ErrorValue[0];
+
+		// Evaluates every node of the level without storing the results, in parallel if there are enough
+		void evaluate(ArrayList<Node> work) {
+			int size = work.size();
+			if(results.length < size) {
+				results = new double[size * 2];
+				columns = new double[size * 2][];
+				errors = new ErrorValue[size * 2];
+			};
+
+			// Lazy compiles link parents and edges, so they always happen on this thread
+			for(int k = 0; k < size; k++) errors[k] = work.get(k).check();
+			if(size >= parallelThreshold) pool.invoke(new Evaluate(work, results, columns, errors, 0, size));
+			else Recalculator.evaluate(work, results, columns, errors, 0, size);
+			evaluations.addAndGet(size);
+		};
+
+		// Stores the k-th result in its node, returning whether the node's value changed
+		boolean store(Node node, int k) {
+			if(errors[k] != null) {
+				ErrorValue error = errors[k];
+				errors[k] = null;
+				return node.setError(error);
+			};
+			if(columns[k] != null) {
+				double[] column = columns[k];
+				columns[k] = null;
+				return node.setColumn(column);
+			};
+			return node.setValue(results[k]);
+		};
+	};
+
+	private static void evaluate(ArrayList<Node> work, double[] results, double[][] columns, ErrorValue[] errors, int from, int to) {
+		for(int k = from; k < to; k++) {
+			if(errors[k] != null) continue;
+			Node node = work.get(k);
+			columns[k] = node.evaluateColumn();
+			if(columns[k] == null) results[k] = node.evaluate();
+		};
+	};
+
+	// Evaluates a range of one level's nodes, splitting it in half until it is small enough
+	private static class Evaluate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<Node> work;
+		private final double[] results;
+		private final double[][] columns;
+		private final ErrorValue[] errors;
+		private final int from, to;
+
+		Evaluate(ArrayList<Node> work, double[] results, double[][] columns, ErrorValue[] errors, int from, int to) {
+			this.work = work;
+			this.results = results;
+			this.columns = columns;
+			this.errors = errors;
+			this.from = from;
+			this.to = to;
+		};
+
+		protected void compute() {
+			if(to - from > chunk) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Evaluate(work, results, columns, errors, from, middle),
+						new Evaluate(work, results, columns, errors, middle, to));
+			} else evaluate(work, results, columns, errors, from, to);
+		};
+	};
+};
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+
+// One frame's worth of drawing state, copied out of the graph by the simulation thread so the
+// render thread never touches live nodes. Main keeps three of these in rotation: the simulation
+// fills one, the renderer draws another, and the third sits in a lock-free handoff slot holding
+// the newest finished frame. Arrays only grow, so capturing a frame stops allocating once the
+// sheet stops growing.
+//
+// Only what intersects the camera's view is captured: nodes come from a spatial index query, and
+// edges from the parents found by a second query widened by Graph.edgeReach and by the graph's
+// ReachIndex, tested segment by segment. Drawing cost follows what is on screen rather than the
+// size of the sheet.
+final class Scene {
+	boolean fresh = false;	// Set by the simulation when published, cleared by the renderer when taken
+	int width, height;
+	double camX, camY, zoom;	// World point at the top left corner, screen pixels per world unit
+	boolean detail;		// Labels and routed connectors, otherwise dots and straight lines
+
+	// Nodes in draw order
+	int nodeCount = 0;
+	int[] nodeX = new int[0], nodeY = new int[0];
+	String[] values = new String[0], labels = new String[0];
+	int[] valueWidths = new int[0], labelWidths = new int[0];
+
+	// Primary edges as center to center segments, four ints each
+	int edgeCount = 0;
+	int[] edges = new int[0];
+
+	// Text box of the node being edited
+	boolean editing = false;
+	int inputX, inputY;
+	String input = "", inputChar = "";
+	int inputPointer = 0;
+	boolean selectAll = false, tabbed = false;
+
+	String errorMessage = "";
+	int errorAlpha = 0;
+
+	private final ArrayList<Node> visible = new ArrayList<Node>();
+	private double left, top, right, bottom;	// The world rectangle being captured
+
+	// Captures whatever intersects the world rectangle
+	void capture(Graph graph, double left, double top, double right, double bottom) {
+		this.left = left;
+		this.top = top;
+		this.right = right;
+		this.bottom = bottom;
+
+		// Labels hang below nodes and can be wider than them
+		visible.clear();
+		graph.query(left - Node.size, top - Node.fontSize - Node.margin, right + Node.size, bottom, visible);
+		visible.sort((a, b) -> a.getId() - b.getId());	// Draw order, oldest node at the bottom
+		int n = visible.size();
+		if(nodeX.length < n) {
+			nodeX = new int[n * 2];
+			nodeY = new int[n * 2];
+			values = new String[n * 2];
+			labels = new String[n * 2];
+			valueWidths = new int[n * 2];
+			labelWidths = new int[n * 2];
+		};
+		for(int i = 0; i < n; i++) {
+			Node node = visible.get(i);
+			nodeX[i] = (int)node.getX();
+			nodeY[i] = (int)node.getY();
+			if(detail) {
+				values[i] = node.getValueText();
+				valueWidths[i] = node.getValueWidth();
+				labels[i] = node.getLabel();
+				labelWidths[i] = node.getLabelWidth();
+			};
+		};
+		for(int i = detail ? n : 0; i < nodeCount; i++) values[i] = labels[i] = null;	// Don't hold on to stale labels
+		nodeCount = n;
+		visible.clear();
+
+		// Each edge is taken from its parent: from the widened query if the parent is in it, else
+		// from the parents of longer edges, skipping those the widened query already had
+		if(edges.length < graph.edgeCount() * 4) edges = new int[graph.edgeCount() * 8];
+		double[] x = graph.getBodies().x, y = graph.getBodies().y;
+		double reach = Graph.edgeReach + Node.size;
+		double nearLeft = left - reach, nearTop = top - reach, nearRight = right + reach, nearBottom = bottom + reach;
+		graph.query(nearLeft, nearTop, nearRight, nearBottom, visible);
+		int e = 0;
+		for(Node parent : visible) {
+			for(Node child : parent.getChildren()) e = capture(parent, child, x, y, e);
+		};
+		visible.clear();
+		graph.queryReach(left, top, right, bottom, visible);
+		for(Node parent : visible) {
+			int p = parent.getSlot();
+			if(Functions.rectRectCollide(nearLeft, nearTop, nearRight, nearBottom, x[p], y[p], x[p] + Node.size, y[p] + Node.size)) continue;
+			for(Node child : parent.getChildren()) e = capture(parent, child, x, y, e);
+		};
+		visible.clear();
+		edgeCount = e / 4;
+	};
+
+	// Appends the edge's center to center segment at e if it is primary and shows, returning the new end
+	private int capture(Node parent, Node child, double[] x, double[] y, int e) {
+		if(!Edge.isPrimary(parent, child)) return e;
+		int p = parent.getSlot(), c = child.getSlot();
+		int x1 = (int)x[p] + Node.size/2, y1 = (int)y[p] + Node.size/2;
+		int x2 = (int)x[c] + Node.size/2, y2 = (int)y[c] + Node.size/2;
+		boolean shown = detail
+				// Connectors run vertically from the parent, then across to the child
+				? (between(x1, x1, left, right) && between(y1, y2, top, bottom))
+					|| (between(y2, y2, top, bottom) && between(x1, x2, left, right))
+				: between(x1, x2, left, right) && between(y1, y2, top, bottom);
+		if(!shown) return e;
+		edges[e++] = x1;
+		edges[e++] = y1;
+		edges[e++] = x2;
+		edges[e++] = y2;
+		return e;
+	};
+
+	// Whether the span from a to b overlaps the span from low to high
+	private static boolean between(int a, int b, double low, double high) {
+		return Math.max(a, b) >= low && Math.min(a, b) <= high;
+	};
+};
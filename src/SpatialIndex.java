@@ -0,0 +1,88 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Uniform hash grid over node bounds. Each node is filed under every cell its bounds overlap and
+// only moves between cells when it crosses a cell border, so picking the node under the cursor
+// looks at a single cell instead of every node.
+class SpatialIndex {
+	private final int cellSize;
+	private final HashMap<Long, ArrayList<Node>> cells = new HashMap<Long, ArrayList<Node>>();
+
+	SpatialIndex(int cellSize) {
+		this.cellSize = cellSize;
+	};
+
+	public void insert(Node node) {
+		int left = cell(node.getX()), top = cell(node.getY());
+		int right = cell(node.getX() + node.getSize()), bottom = cell(node.getY() + node.getSize());
+		node.setCells(left, top, right, bottom);
+		for(int cy = top; cy <= bottom; cy++) {
+			for(int cx = left; cx <= right; cx++) {
+				cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<Node>(2)).add(node);
+			};
+		};
+	};
+
+	public void remove(Node node) {
+		int[] c = node.getCells();
+		for(int cy = c[1]; cy <= c[3]; cy++) {
+			for(int cx = c[0]; cx <= c[2]; cx++) {
+				Long key = key(cx, cy);
+				ArrayList<Node> bucket = cells.get(key);
+				if(bucket != null) {
+					bucket.remove(node);
+					if(bucket.isEmpty()) cells.remove(key);
+				};
+			};
+		};
+	};
+
+	public void update(Node node) {
+		int[] c = node.getCells();
+		if(cell(node.getX()) != c[0] || cell(node.getY()) != c[1] ||
+				cell(node.getX() + node.getSize()) != c[2] || cell(node.getY() + node.getSize()) != c[3]) {
+			remove(node);
+			insert(node);
+		};
+	};
+
+	// Returns the topmost (last drawn, so newest) node under the point, or null
+	public Node pick(Point p) {
+		ArrayList<Node> bucket = cells.get(key(cell(p.x), cell(p.y)));
+		Node top = null;
+		if(bucket != null) {
+			for(Node node : bucket) {
+				if(node.pointCollide(p) && (top == null || node.getId() > top.getId())) top = node;
+			};
+		};
+		return top;
+	};
+
+	// Collects every node whose bounds overlap the rectangle, each exactly once
+	public void query(double l, double t, double r, double b, ArrayList<Node> out) {
+		int left = cell(l), top = cell(t), right = cell(r), bottom = cell(b);
+		for(int cy = top; cy <= bottom; cy++) {
+			for(int cx = left; cx <= right; cx++) {
+				ArrayList<Node> bucket = cells.get(key(cx, cy));
+				if(bucket == null) continue;
+				for(Node node : bucket) {
+					int[] c = node.getCells();
+					// A node spanning several cells is only reported from the first one inside the query
+					if(cx == Math.max(c[0], left) && cy == Math.max(c[1], top)) {
+						if(Functions.rectRectCollide(l, t, r, b, node.getX(), node.getY(),
+								node.getX() + node.getSize(), node.getY() + node.getSize())) out.add(node);
+					};
+				};
+			};
+		};
+	};
+
+	private int cell(double v) {
+		return (int)Math.floor(v / cellSize);
+	};
+
+	private static Long key(int cx, int cy) {
+		return ((long)cx << 32) | (cy & 0xffffffffL);
+	};
+};
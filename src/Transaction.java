@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A group of edits applied together with one recalculation. Edits are only recorded until commit,
+// which applies all of them and then recalculates everything downstream of the union in a single
+// pass, so a node depending on several edited nodes is evaluated once rather than once per edit.
+// If any input fails to parse, or the edits would form a reference cycle, every edited node is
+// put back as it was, nothing is recalculated and commit throws with the reason. Errors met while
+// recalculating are stored as error values, as for a single edit.
+public class Transaction {
+	private final LinkedHashMap<Node, String> edits = new LinkedHashMap<Node, String>();
+	private final Graph graph;
+	private boolean done = false;
+
+	Transaction(Graph graph) {
+		this.graph = graph;
+	};
+
+	// Records a new input for the node; a later edit of the same node replaces this one
+	public void set(Node node, String input) {
+		if(done) throw new IllegalStateException("Transaction already committed");
+		edits.put(node, input);
+	};
+
+	public int size() {
+		return edits.size();
+	};
+
+	// Applies every edit and returns the nodes whose value changed, edited ones included
+	public ArrayList<Node> commit() {
+		if(done) throw new IllegalStateException("Transaction already committed");
+		done = true;
+
+		HashMap<Node, Node.State> saved = new HashMap<Node, Node.State>();
+		ArrayList<Node> roots = new ArrayList<Node>();
+		for(Map.Entry<Node, String> edit : edits.entrySet()) {
+			Node node = edit.getKey();
+			if(node.getInput().equals(edit.getValue())) continue;
+			saved.put(node, node.save());
+			roots.add(node);
+			node.apply(edit.getValue());
+			ErrorValue fault = node.getFault();
+			if(fault != null) {
+				rollback(roots, saved);
+				throw new RuntimeException(fault.message(node));
+			};
+		};
+		if(Recalculator.blocked(roots)) {
+			rollback(roots, saved);
+			throw new RuntimeException("Cyclical referencing error");
+		};
+		if(roots.isEmpty()) return new ArrayList<Node>(0);
+
+		// Formulas are reported by the pass itself; plain values are reported here if they changed
+		ArrayList<Node> changed = new ArrayList<Node>();
+		for(Node node : roots) {
+			Node.State state = saved.get(node);
+			if(!node.isFormula() && state.changed(node)) changed.add(node);
+		};
+		changed.addAll(graph.recalculate(roots, true));
+		return changed;
+	};
+
+	// Puts every applied edit back, links included
+	private static void rollback(ArrayList<Node> roots, HashMap<Node, Node.State> saved) {
+		for(int i = roots.size() - 1; i >= 0; i--) {
+			Node node = roots.get(i);
+			node.revert(saved.get(node));
+		};
+	};
+};
@@ -0,0 +1,24 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// Bodies' integration pass on the incubating Vector API, a full vector of bodies per iteration at
+// the widest size the CPU supports. Only loaded when jdk.incubator.vector is in the boot layer;
+// the same arithmetic in the same order as the scalar loop, so positions agree to the bit.
+final class VectorKernel implements Bodies.Kernel {
+	private static final VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void integrate(double[] x, double[] y, double[] xVel, double[] yVel, double[] lastMove, int n, double dampener) {
+		int i = 0;
+		for(int bound = species.loopBound(n); i < bound; i += species.length()) {
+			DoubleVector dx = DoubleVector.fromArray(species, xVel, i);
+			DoubleVector dy = DoubleVector.fromArray(species, yVel, i);
+			dx.abs().add(dy.abs()).intoArray(lastMove, i);
+			DoubleVector.fromArray(species, x, i).add(dx).intoArray(x, i);
+			DoubleVector.fromArray(species, y, i).add(dy).intoArray(y, i);
+			dx.mul(dampener).intoArray(xVel, i);
+			dy.mul(dampener).intoArray(yVel, i);
+		};
+		Bodies.integrate(x, y, xVel, yVel, lastMove, i, n, dampener);
+	};
+};
@@ -0,0 +1,54 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GraphFileTest {
+	@TempDir
+	Path dir;
+
+	// Errors aren't saved, only the NaN they leave in place of a value, so loading has to find them
+	// again
+	@Test
+	void errorsSurviveSaveAndLoad() throws IOException {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		Node c = graph.add(0, 0, "c");
+		Node d = graph.add(0, 0, "d");
+		Node e = graph.add(0, 0, "e");
+		Node f = graph.add(0, 0, "f");
+		Node g = graph.add(0, 0, "g");
+		Node h = graph.add(0, 0, "h");
+		a.updateValue("1", false);
+		b.updateValue("=@nowhere", false);
+		c.updateValue("=@a+", false);
+		d.updateValue("abc", false);
+		e.updateValue("=@b*2", false);
+		f.updateValue("=@g", false);
+		g.updateValue("=@f", false);
+		Node gone = graph.add(0, 0, "gone");
+		h.updateValue("=@gone+@a", false);
+		graph.remove(gone);
+
+		Path path = dir.resolve("sheet");
+		GraphFile.save(graph, path);
+		Graph loaded = GraphFile.load(path);
+		for(Node node : graph) {
+			Node copy = loaded.getById(node.getId());
+			String label = node.getName();
+			if(node.getError() == null) assertNull(copy.getError(), label);
+			else assertEquals(node.getError().code, copy.getError().code, label);
+		};
+		assertEquals(ErrorValue.Code.NAME, loaded.getById(b.getId()).getError().code);
+		assertEquals(ErrorValue.Code.REF, loaded.getById(h.getId()).getError().code);
+		assertEquals(1, loaded.getById(a.getId()).getValue());
+
+		loaded.getById(a.getId()).updateValue("2", false);
+		assertEquals(ErrorValue.Code.REF, loaded.getById(h.getId()).getError().code);
+	};
+};
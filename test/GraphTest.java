@@ -0,0 +1,23 @@
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.Point;
+
+import org.junit.jupiter.api.Test;
+
+class GraphTest {
+	// Deleting a node moves another into its slot, which mustn't bring it to the top
+	@Test
+	void removeKeepsStackingOrder() {
+		Graph graph = new Graph();
+		Node bottom = graph.add(100, 100, "bottom");
+		Node middle = graph.add(100, 100, "middle");
+		Node top = graph.add(100, 100, "top");
+		Point point = new Point(100, 100);
+		assertSame(top, graph.pick(point));
+
+		graph.remove(bottom);
+		assertSame(top, graph.pick(point));
+		graph.remove(top);
+		assertSame(middle, graph.pick(point));
+	};
+};
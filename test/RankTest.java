@@ -0,0 +1,265 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Graph keeps ranks up to date link by link so an edit can be propagated in rank order. These
+// check that the bookkeeping comes back to a ranked sheet once a cycle is gone, however it came
+// and went, and that propagating in rank order gives what lazy evaluation does.
+class RankTest {
+	@Test
+	void selfReferenceThenRemoved() {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		a.updateValue("1", false);
+		b.updateValue("=@a+1", false);
+		b.updateValue("=@" + b.getId(), false);	// By name it would look for another b
+		assertFalse(graph.isRanked());
+		assertEquals(ErrorValue.Code.CYCLE, b.getError().code);
+
+		b.updateValue("=@a+1", false);
+		assertRanked(graph);
+		a.updateValue("5", false);
+		assertEquals(6, b.getValue());
+	};
+
+	@Test
+	void selfReferenceOnNodeWithDependents() {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		a.updateValue("1", false);
+		b.updateValue("=@a+1", false);
+		a.updateValue("=@" + a.getId(), false);
+		assertFalse(graph.isRanked());
+		assertEquals(ErrorValue.Code.CYCLE, b.getError().code);
+
+		a.updateValue("2", false);
+		assertRanked(graph);
+		assertEquals(3, b.getValue());
+	};
+
+	// Nodes below a loop are left unranked while it stands
+	@Test
+	void selfReferenceWithDependentsRankedWhileItStands() {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		a.updateValue("=@" + a.getId(), false);
+		b.updateValue("=@a", false);
+		assertFalse(graph.isRanked());
+
+		a.updateValue("2", false);
+		assertRanked(graph);
+		assertEquals(2, b.getValue());
+	};
+
+	@Test
+	void cycleCreatedThenBroken() {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		Node c = graph.add(0, 0, "c");
+		a.updateValue("1", false);
+		b.updateValue("=@a+1", false);
+		c.updateValue("=@b+1", false);
+		a.updateValue("=@c+1", false);
+		assertFalse(graph.isRanked());
+		assertEquals(ErrorValue.Code.CYCLE, c.getError().code);
+
+		b.updateValue("10", false);
+		assertRanked(graph);
+		assertEquals(11, c.getValue());
+		assertEquals(12, a.getValue());
+	};
+
+	// Ranking a sheet with a cycle leaves some of the cycle's links in order, and removing one of
+	// those breaks it too
+	@Test
+	void cycleBrokenAtLinkInOrder() {
+		Graph graph = new Graph();
+		Node s = graph.add(0, 0, "s");
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		s.updateValue("1", false);
+		a.updateValue("=@s+@b", false);
+		b.updateValue("=@a", false);
+		assertFalse(graph.isRanked());
+
+		a.updateValue("=@s", false);
+		assertRanked(graph);
+		assertEquals(1, b.getValue());
+	};
+
+	@Test
+	void cycleBrokenByDeletingNode() {
+		Graph graph = new Graph();
+		Node a = graph.add(0, 0, "a");
+		Node b = graph.add(0, 0, "b");
+		Node c = graph.add(0, 0, "c");
+		a.updateValue("=@b", false);
+		b.updateValue("=@a", false);
+		c.updateValue("=@a+@b", false);
+		assertFalse(graph.isRanked());
+
+		graph.remove(b);
+		assertRanked(graph);
+	};
+
+	// A chain longer than the raise budget, lifted at its head, has to be ranked all over again
+	@Test
+	void raiseBudgetExceeded() {
+		Graph graph = new Graph();
+		Node first = graph.add(0, 0, "");
+		first.updateValue("0", false);
+		Node last = first;
+		for(int i = 0; i < 6000; i++) {
+			Node next = graph.add(0, 0, "");
+			next.updateValue("=@" + last.getId() + "+1", false);
+			last = next;
+		};
+		Node root = graph.add(0, 0, "");
+		Node middle = graph.add(0, 0, "");
+		root.updateValue("3", false);
+		middle.updateValue("=@" + root.getId(), false);
+		first.updateValue("=@" + middle.getId(), false);
+		assertRanked(graph);
+		assertEquals(6003, last.getValue());
+
+		root.updateValue("4", false);
+		assertEquals(6004, last.getValue());
+	};
+
+	// Random edits, deletes and transactions, many closing and breaking cycles, applied alike to
+	// an eager and a lazy sheet. After every step both must show the same values and errors, and
+	// the eager one must be ranked exactly when it has no cycle.
+	@Test
+	void eagerMatchesLazy() {
+		for(long seed = 0; seed < 40; seed++) {
+			Graph eager = new Graph(), lazy = new Graph();
+			lazy.setLazy(true);
+			Random random = new Random(seed);
+			for(int step = 0; step < 300; step++) {
+				int op = random.nextInt(10);
+				int count = eager.size();
+				if(count < 4 || op == 0) {
+					String value = String.valueOf(random.nextInt(5));
+					eager.add(0, 0, "n").updateValue(value, false);
+					lazy.add(0, 0, "n").updateValue(value, false);
+				} else if(op < 6) {
+					int id = eager.get(random.nextInt(count)).getId();
+					String input = random.nextInt(3) == 0 ? value(random) : formula(eager, random);
+					eager.getById(id).updateValue(input, false);
+					lazy.getById(id).updateValue(input, false);
+				} else if(op == 6) {
+					int id = eager.get(random.nextInt(count)).getId();
+					eager.remove(eager.getById(id));
+					lazy.remove(lazy.getById(id));
+				} else {
+					Transaction first = eager.begin(), second = lazy.begin();
+					for(int k = 0; k < 3; k++) {
+						int id = eager.get(random.nextInt(count)).getId();
+						String input = random.nextBoolean() ? value(random) : formula(eager, random);
+						first.set(eager.getById(id), input);
+						second.set(lazy.getById(id), input);
+					};
+					assertEquals(commits(first), commits(second));	// Both roll back on a fault or a cycle
+				};
+				String at = "seed " + seed + " step " + step;
+				assertEquals(!hasCycle(eager), eager.isRanked(), at);
+				if(eager.isRanked()) assertOrdered(eager);
+				for(Node node : eager) assertSame(node, lazy.getById(node.getId()), at);
+			};
+		};
+	};
+
+	private static String value(Random random) {
+		return random.nextInt(5) == 0 ? "{1, 2, 3}" : String.valueOf(random.nextInt(4));
+	};
+
+	private static String formula(Graph graph, Random random) {
+		String formula = "=@" + graph.get(random.nextInt(graph.size())).getId();
+		if(random.nextBoolean()) formula += "*2+@" + graph.get(random.nextInt(graph.size())).getId();
+		return formula;
+	};
+
+	private static boolean commits(Transaction transaction) {
+		try {
+			transaction.commit();
+			return true;
+		} catch(RuntimeException e) {
+			return false;
+		}
+	};
+
+	private static void assertSame(Node expected, Node actual, String at) {
+		String message = at + " node " + expected.getId();
+		ErrorValue error = expected.getError();
+		if(error != null) {
+			assertNotNull(actual.getError(), message);
+
+			// Of parents holding different errors, which is passed on follows the order of a HashSet,
+			// and a broken formula on or below a cycle may show either, so any error held upstream will
+			// do
+			HashSet<ErrorValue.Code> codes = new HashSet<ErrorValue.Code>();
+			ArrayList<Node> upstream = new ArrayList<Node>();
+			HashSet<Node> seen = new HashSet<Node>();
+			upstream.add(expected);
+			seen.add(expected);
+			for(int i = 0; i < upstream.size(); i++) {
+				Node node = upstream.get(i);
+				if(node.getError() != null) codes.add(node.getError().code);
+				if(node.getFault() != null) codes.add(node.getFault().code);
+				for(Node parent : node.getParents()) {
+					if(seen.add(parent)) upstream.add(parent);
+				};
+			};
+			assertTrue(codes.contains(actual.getError().code), message);
+			return;
+		};
+		assertNull(actual.getError(), message);
+		assertArrayEquals(expected.getColumn(), actual.getColumn(), message);
+		assertEquals(expected.getValue(), actual.getValue(), message);
+	};
+
+	private static void assertRanked(Graph graph) {
+		assertTrue(graph.isRanked());
+		assertOrdered(graph);
+	};
+
+	private static void assertOrdered(Graph graph) {
+		for(Edge edge : graph.getEdges()) {
+			assertTrue(edge.child.getRank() > edge.parent.getRank(), "[" + edge.parent.getId() + "] -> [" + edge.child.getId() + "]");
+		};
+	};
+
+	// Depth first search for a back edge, kept apart from the graph's own bookkeeping
+	private static boolean hasCycle(Graph graph) {
+		HashMap<Node, Integer> state = new HashMap<Node, Integer>();	// 1 on the path, 2 done
+		for(Node node : graph) {
+			if(!state.containsKey(node) && reachesPath(node, state)) return true;
+		};
+		return false;
+	};
+
+	private static boolean reachesPath(Node node, HashMap<Node, Integer> state) {
+		state.put(node, 1);
+		for(Node child : node.getChildren()) {
+			Integer s = state.get(child);
+			if(s != null && s == 1) return true;
+			if(s == null && reachesPath(child, state)) return true;
+		};
+		state.put(node, 2);
+		return false;
+	};
+};